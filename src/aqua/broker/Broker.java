@@ -5,48 +5,173 @@ import aqua.common.Direction;
 import aqua.common.FishModel;
 import aqua.common.Properties;
 import aqua.common.msgtypes.*;
+import aqua.common.scheduling.Lane;
 import aqua.common.security.SecureEndpoint;
 import messaging.Endpoint;
 import messaging.Message;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Timestamp;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Broker {
 
     private static Broker instance;
     public static final int LEASE_DURATION = 2000;
-    private static final int THREAD_POOL_SIZE = (int) (Runtime.getRuntime().availableProcessors() / 0.5);
+    private static final int LEASE_SWEEP_INTERVAL = LEASE_DURATION / 4;
+    // clients whose renewals may have been lost while no broker was answering keep their place until they have
+    // noticed the silence and registered anew
+    private static final long GRACE_LEASE_DURATION = Properties.FAILOVER_LEASES * LEASE_DURATION
+            + Properties.BROKER_WATCH_INTERVAL + LEASE_DURATION;
+    static final int THREAD_POOL_SIZE = (int) (Runtime.getRuntime().availableProcessors() / 0.5);
+    private static final int DECRYPTION_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    static final int STAGE_QUEUE_CAPACITY = 1024;
+    private static final long SHUTDOWN_TIMEOUT = 1000;
+    // the number of replication events a standby holds back while waiting for a missing one before it resyncs
+    private static final int MAX_EARLY_EVENTS = 1024;
+    private static final int SLOW_DOWN_DURATION = 500;
+    private static final int COMPACTION_INTERVAL = 60000;
     private final SecureEndpoint endpoint;
     private final ClientCollection<InetSocketAddress> availableClients;
-    private final ReadWriteLock lock;
-    private final Timer timer;
+    private final AtomicReference<RingSnapshot<InetSocketAddress>> ring;
+    private final LeaseManager<InetSocketAddress> leaseManager;
+    private final Lock membershipLock;
+    private final ScheduledExecutorService leaseSweeper;
+    private final LongAdder receivedMessages;
+    private final PipelineStage decryptionStage;
+    private final PipelineStage dispatchStage;
+    private final ConcurrentMap<InetSocketAddress, Long> slowDownHints;
+    private final SegmentDirectory segments;
+    private final String tankPrefix;
+    private final MembershipJournal journal;
+    private final Replicator replicator;
+    // clients waiting for the next batch of joins, guarded by the membership lock
+    private final Set<InetSocketAddress> pendingJoins;
+    // replication events which overtook their predecessors, by sequence; guarded by the membership lock
+    private final NavigableMap<Long, ReplicationEvent> earlyEvents;
+    // the number of the last assigned tank id, guarded by the membership lock
+    private long tankCount;
+    private InetSocketAddress announcedFirst;
+    private InetSocketAddress announcedLast;
+    // the primary this broker is the standby of, null once this broker is the primary
+    private volatile InetSocketAddress primary;
+    private volatile long primaryContact;
+    // guarded by the membership lock
+    private long expectedSequence;
+    private boolean resyncNeeded;
+    // the last event sequence announced by a heartbeat, guarded by the membership lock
+    private long awaitedSequence;
     private volatile boolean stopRequested;
 
-    private Broker() {
+    /**
+     * @param shard the index of this broker in the cluster
+     * @param brokers the addresses of all brokers of the cluster, ordered by index
+     * @param primary the primary broker if this broker is its standby, {@code null} otherwise
+     */
+    private Broker(int shard, List<InetSocketAddress> brokers, InetSocketAddress primary) {
+
+        int port = brokers.get(shard).getPort();
+        endpoint = new SecureEndpoint(port, Properties.KEY_STORE_DIRECTORY == null ? null
+                : Paths.get(Properties.KEY_STORE_DIRECTORY, "broker-" + port));
+        segments = new SegmentDirectory(shard, brokers);
+        List<InetSocketAddress> otherBrokers = new ArrayList<>(brokers);
+        otherBrokers.remove(shard);
 
-        endpoint = new SecureEndpoint(Properties.PORT);
+        if (primary != null) {
+            otherBrokers.add(primary);
+        }
+
+        // clients register from ephemeral ports, so only the keys of the other brokers are worth keeping
+        endpoint.persistPartners(otherBrokers);
+        // ids have to be unique in the whole ring
+        tankPrefix = brokers.size() == 1 ? "tank" : "tank" + shard + ".";
         availableClients = new ClientCollection<>();
+        pendingJoins = new LinkedHashSet<>();
+        ring = new AtomicReference<>(RingSnapshot.empty());
         stopRequested = false;
-        lock = new ReentrantReadWriteLock();
-        timer = new Timer();
+        leaseManager = new LeaseManager<>(LEASE_DURATION, GRACE_LEASE_DURATION);
+        membershipLock = new ReentrantLock();
+        leaseSweeper = Executors.newSingleThreadScheduledExecutor();
+        receivedMessages = new LongAdder();
+        decryptionStage = new PipelineStage("decrypt", DECRYPTION_POOL_SIZE, STAGE_QUEUE_CAPACITY);
+        dispatchStage = Properties.VIRTUAL_THREADS
+                ? PipelineStage.virtualThreadPerTask("dispatch")
+                : PipelineStage.withLanes("dispatch", THREAD_POOL_SIZE, STAGE_QUEUE_CAPACITY,
+                OverflowPolicy.valueOf(Properties.OVERFLOW_POLICY), this::hintSlowDown);
+        slowDownHints = new ConcurrentHashMap<>();
+        journal = Properties.JOURNAL_DIRECTORY == null ? null
+                : recoverMembership(Paths.get(Properties.JOURNAL_DIRECTORY, "broker-" + port));
+        replicator = new Replicator(endpoint);
+        RingSnapshot<InetSocketAddress> recovered = ring.get();
+
+        for (int i = 0; i < recovered.size(); i++)
+            claimId(recovered.getId(recovered.getClient(i)));
+
+        this.primary = primary;
+        primaryContact = System.currentTimeMillis();
+        resyncNeeded = true;
+        earlyEvents = new TreeMap<>();
 
     }
 
+    /**
+     * Rebuilds the ring recorded in the journal in the given directory. The recovered clients get a grace lease, so
+     * they keep their ids and neighbors if they register anew once they notice the broker was gone.
+     *
+     * @return the journal recording further changes, or {@code null} if it can't be opened
+     */
+    private MembershipJournal recoverMembership(Path directory) {
+
+        try {
+
+            long start = System.nanoTime();
+            MembershipJournal membershipJournal = new MembershipJournal(directory);
+            membershipJournal.recover(availableClients);
+
+            RingSnapshot<InetSocketAddress> recovered = availableClients.snapshot();
+            ring.set(recovered);
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < recovered.size(); i++)
+                leaseManager.grantGrace(recovered.getClient(i), now);
+
+            System.out.println("Recovered " + recovered.size() + " clients in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+            return membershipJournal;
+
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     /**
      * @return the singleton instance of the Broker class
      */
     public static Broker getInstance() {
 
         if (instance == null) {
-            instance = new Broker();
+            instance = new Broker(0, List.of(new InetSocketAddress(Properties.HOST, Properties.PORT)), null);
         }
 
         return instance;
@@ -67,20 +192,243 @@ public class Broker {
         return endpoint;
     }
 
-    public ClientCollection<InetSocketAddress> getAvailableClients() {
+    /**
+     * @return the current ring of registered clients
+     */
+    public RingSnapshot<InetSocketAddress> getAvailableClients() {
 
-        return availableClients;
+        return ring.get();
     }
 
-    public void broker() {
+    /**
+     * @return the left neighbor of a client of this broker's segment in the whole ring
+     */
+    private InetSocketAddress leftNeighborOf(InetSocketAddress client) {
+
+        return segments.leftNeighborOf(client, ring.get());
+    }
+
+    /**
+     * @return the right neighbor of a client of this broker's segment in the whole ring
+     */
+    private InetSocketAddress rightNeighborOf(InetSocketAddress client) {
+
+        return segments.rightNeighborOf(client, ring.get());
+    }
+
+    /**
+     * Sends the client its current neighbors, if it belongs to this broker's segment. Clients of other segments
+     * are updated by their own broker.
+     */
+    private void sendNeighborUpdate(InetSocketAddress client) {
+
+        if (client != null && ring.get().contains(client)) {
+            endpoint.send(client, new NeighborUpdate(leftNeighborOf(client), rightNeighborOf(client)));
+        }
+    }
+
+    /**
+     * Announces the first and last client of this broker's segment to the other brokers of the cluster.
+     *
+     * @param always true to announce them even if they didn't change, which repairs lost announcements
+     */
+    private void announceSegment(boolean always) {
+
+        RingSnapshot<InetSocketAddress> segment = ring.get();
+        InetSocketAddress first = segment.getFirst();
+        InetSocketAddress last = segment.getLast();
+
+        synchronized (segments) {
+
+            if (!always && Objects.equals(first, announcedFirst) && Objects.equals(last, announcedLast)) {
+                return;
+            }
+
+            announcedFirst = first;
+            announcedLast = last;
+        }
+
+        for (int i = 0; i < segments.getBrokers().size(); i++)
+            if (i != segments.getShard())
+                endpoint.send(segments.getBrokers().get(i), new SegmentUpdate(segments.getShard(), first, last));
+    }
+
+    /**
+     * @return a new tank id, distinct from the ids of all registered clients and never assigned before by this
+     * broker. Must be called while holding the membership lock.
+     */
+    private String nextTankId() {
+
+        String id;
+
+        do {
+            id = tankPrefix + ++tankCount;
+        } while (availableClients.getClient(id) != null);
+
+        return id;
+    }
+
+    /**
+     * Makes sure an id assigned elsewhere, by a previous run or by the primary, isn't assigned again. Must be called
+     * while holding the membership lock, or before the broker runs.
+     */
+    private void claimId(String id) {
+
+        if (id.startsWith(tankPrefix)) {
+
+            try {
+                tankCount = Math.max(tankCount, Long.parseLong(id.substring(tankPrefix.length())));
+            } catch (NumberFormatException ignored) {
+                // not an id of this broker's scheme, nextTankId skips it anyway if it's in use
+            }
+        }
+    }
+
+    /**
+     * Splices all pending joins into the ring at once. Every new client gets a {@code RegisterResponse}, and every
+     * client whose neighbors changed gets a single {@code NeighborUpdate} reflecting the ring after the whole
+     * batch, instead of one update per join.
+     */
+    private void spliceJoins() {
+
+        membershipLock.lock();
+
+        try {
+
+            if (pendingJoins.isEmpty()) {
+                return;
+            }
+
+            boolean wasEmpty = availableClients.size() == 0;
+            List<InetSocketAddress> joined = new ArrayList<>(pendingJoins.size());
+            List<String> ids = new ArrayList<>(pendingJoins.size());
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+
+            for (InetSocketAddress client : pendingJoins) {
+
+                if (!availableClients.contains(client)) {
+                    String tankId = nextTankId();
+                    availableClients.add(tankId, client, now);
+                    joined.add(client);
+                    ids.add(tankId);
+                }
+            }
+
+            pendingJoins.clear();
+
+            if (joined.isEmpty()) {
+                return;
+            }
+
+            ring.set(availableClients.snapshot());
+
+            for (int i = 0; i < joined.size(); i++)
+                recordJoin(ids.get(i), joined.get(i));
+
+            // give token to first client
+            if (wasEmpty && segments.othersEmpty()) {
+
+                endpoint.send(joined.get(0), new Token());
+
+            }
+
+            Set<InetSocketAddress> affected = new LinkedHashSet<>();
+
+            for (int i = 0; i < joined.size(); i++) {
+
+                InetSocketAddress client = joined.get(i);
+                endpoint.send(client, new RegisterResponse(ids.get(i), LEASE_DURATION));
+                affected.add(client);
+                affected.add(leftNeighborOf(client));
+                affected.add(rightNeighborOf(client));
+            }
+
+            for (InetSocketAddress client : affected)
+                sendNeighborUpdate(client);
 
-        // using the executor framework to manage a thread pool of fixed size
-        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+            announceSegment(false);
+
+        } catch (RuntimeException e) {
+            // keep the sweeper alive, a failing send must not cancel future sweeps
+            e.printStackTrace();
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Records a client joining the ring in the journal and replicates it to the standbys. Must be called while
+     * holding the membership lock, after the client has been added to the ring.
+     */
+    private void recordJoin(String id, InetSocketAddress client) {
+
+        if (journal != null && !journal.recordJoin(id, client)) {
+            compactJournal();
+        }
+
+        replicator.added(id, client);
+    }
+
+    /**
+     * Records a client leaving the ring in the journal and replicates it to the standbys. Must be called while
+     * holding the membership lock, after the client has been removed from the ring.
+     */
+    private void recordLeave(InetSocketAddress client) {
+
+        if (journal != null && !journal.recordLeave(client)) {
+            compactJournal();
+        }
+
+        replicator.removed(client);
+    }
+
+    /**
+     * Writes the current ring to a snapshot, which replaces all journal records. Must be called while holding the
+     * membership lock.
+     */
+    private void compactJournal() {
+
+        try {
+            journal.compact(ring.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of datagrams taken from the socket by the receive stage
+     */
+    public long getReceivedMessages() {
+
+        return receivedMessages.sum();
+    }
+
+    public PipelineStage getDecryptionStage() {
+
+        return decryptionStage;
+    }
+
+    public PipelineStage getDispatchStage() {
+
+        return dispatchStage;
+    }
+
+    /**
+     * Runs the receive pipeline. The calling thread only pulls raw datagrams from the socket; decryption and
+     * deserialization run on the decryption stage's pool, and the decrypted messages are routed by the
+     * dispatch stage's pool, or by one virtual thread per message if {@code -Daqua.executor=virtual} is set.
+     * The pool takes registrations and deregistrations before handoffs, so a handoff storm doesn't delay ring
+     * repairs.
+     * <p>
+     * On stop, or if receiving fails, the stages are shut down in pipeline order within one timeout, each one
+     * finishing its submitted tasks before the next one is shut down, so no decrypted message is lost.
+     */
+    public void broker() {
 
         // commented out for convenience
         /*
 
-        executorService.execute(() -> {
+        dispatchStage.submit(() -> {
 
             JOptionPane.showMessageDialog(null, "Press OK button to terminate server.");
             setStopRequested(true);
@@ -89,32 +437,355 @@ public class Broker {
 
         */
 
-        while (!stopRequested) {
+        leaseSweeper.scheduleAtFixedRate(this::expireLeases, LEASE_SWEEP_INTERVAL, LEASE_SWEEP_INTERVAL,
+                TimeUnit.MILLISECONDS);
+
+        if (journal != null) {
+
+            leaseSweeper.scheduleWithFixedDelay(() -> {
+
+                membershipLock.lock();
+
+                try {
+                    if (journal.getRecords() > 0) {
+                        compactJournal();
+                    }
+                } finally {
+                    membershipLock.unlock();
+                }
+            }, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        if (segments.getBrokers().size() > 1) {
+            leaseSweeper.scheduleAtFixedRate(() -> announceSegment(true), 0, LEASE_DURATION,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        try {
+
+            while (!stopRequested) {
+
+                Message encryptedMessage = endpoint.receiveRaw();
+                receivedMessages.increment();
+
+                decryptionStage.submit(() -> {
+
+                    for (Message message : endpoint.decryptAll(encryptedMessage))
+                        dispatchStage.submit(Lane.of(message.getPayload()), new BrokerTask(message));
+                });
+
+            }
+
+        } finally {
+
+            leaseSweeper.shutdown();
+
+            if (!PipelineStage.shutdown(SHUTDOWN_TIMEOUT, decryptionStage, dispatchStage)) {
+                System.err.println("Pipeline stages didn't finish within " + SHUTDOWN_TIMEOUT + " ms.");
+            }
+        }
+
+    }
+
+    /**
+     * Asks the sender of a message which overflowed the dispatch queue to hold its fishes. Each client gets at
+     * most one hint per hold duration.
+     *
+     * @param task the overflowing {@code BrokerTask}
+     */
+    private void hintSlowDown(Runnable task) {
+
+        InetSocketAddress sender = ((BrokerTask) task).message.getSender();
+        long now = System.currentTimeMillis();
+        Long hintedAt = slowDownHints.get(sender);
+
+        if (hintedAt != null && now - hintedAt < SLOW_DOWN_DURATION) {
+            return;
+        }
+
+        slowDownHints.put(sender, now);
+        endpoint.send(sender, new SlowDown(SLOW_DOWN_DURATION));
+    }
+
+    /**
+     * Removes all clients whose lease has run out and sends the standbys a heartbeat. A standby doesn't expire
+     * any leases, but watches the primary instead.
+     */
+    private void expireLeases() {
+
+        if (primary != null) {
+            watchPrimary();
+            return;
+        }
+
+        replicator.heartbeat();
+        List<InetSocketAddress> expired = leaseManager.expire(System.currentTimeMillis());
 
-            timer.schedule(new TimerTask() {
+        if (!expired.isEmpty()) {
+            removeClients(expired);
+        }
+    }
+
+    /**
+     * Removes the given clients from the ring. The surviving neighbors of the removed clients get a single
+     * {@code NeighborUpdate} each, reflecting the ring after all given clients have been removed.
+     */
+    private void removeClients(List<InetSocketAddress> expired) {
+
+        membershipLock.lock();
+
+        try {
+
+            Set<InetSocketAddress> affected = new LinkedHashSet<>();
+
+            for (InetSocketAddress client : expired) {
+
+                if (availableClients.contains(client)) {
+                    affected.add(leftNeighborOf(client));
+                    affected.add(rightNeighborOf(client));
+                }
+            }
+
+            List<InetSocketAddress> removed = new ArrayList<>();
+
+            for (InetSocketAddress client : expired) {
+
+                if (availableClients.contains(client)) {
+                    availableClients.remove(client);
+                    slowDownHints.remove(client);
+                    removed.add(client);
+                }
+            }
+
+            // one snapshot for all removals; the leaves are recorded afterwards, so a compaction on the way
+            // writes the ring without any of them
+            if (!removed.isEmpty()) {
+                ring.set(availableClients.snapshot());
+            }
+
+            for (InetSocketAddress client : removed) {
+                recordLeave(client);
+            }
+
+            for (InetSocketAddress neighbor : affected) {
+                sendNeighborUpdate(neighbor);
+            }
+
+            announceSegment(false);
+
+        } catch (RuntimeException e) {
+            // keep the sweeper alive, a failing send must not cancel future sweeps
+            e.printStackTrace();
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the standby's subscription alive and takes over if the primary hasn't been heard of for a lease.
+     */
+    private void watchPrimary() {
+
+        InetSocketAddress primaryBroker = primary;
+
+        if (primaryBroker == null) {
+            return;
+        }
+
+        if (System.currentTimeMillis() - primaryContact > LEASE_DURATION) {
+            takeOver();
+            return;
+        }
+
+        boolean resync;
+
+        membershipLock.lock();
+
+        try {
+            resync = resyncNeeded;
+        } finally {
+            membershipLock.unlock();
+        }
+
+        endpoint.send(primaryBroker, new ReplicaSubscribe(resync));
+    }
+
+    /**
+     * Makes this standby the primary. Clients whose lease had already run out when the primary went silent are
+     * removed; all others get a grace lease, which lasts until they have noticed the silence and failed over to
+     * this broker, so they keep their ids and neighbors.
+     */
+    private void takeOver() {
+
+        List<InetSocketAddress> expired;
+
+        membershipLock.lock();
+
+        try {
+
+            if (primary == null) {
+                return;
+            }
+
+            System.out.println("Primary " + primary + " is silent, taking over.");
+            primary = null;
+            expired = leaseManager.expire(primaryContact);
+
+            RingSnapshot<InetSocketAddress> clients = ring.get();
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < clients.size(); i++)
+                if (!expired.contains(clients.getClient(i)))
+                    leaseManager.grantGrace(clients.getClient(i), now);
+
+            if (!expired.isEmpty()) {
+                removeClients(expired);
+            }
+
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a membership change streamed by the primary. Events are handled by several threads, so they may
+     * arrive out of order; an event arriving ahead of its predecessors is held back until they have been applied. An
+     * event which still hasn't arrived when the heartbeat after the next one does is lost, which is answered by a
+     * resync request.
+     */
+    private void applyReplicationEvent(ReplicationEvent event) {
+
+        membershipLock.lock();
+
+        try {
+
+            primaryContact = System.currentTimeMillis();
+
+            if (event.getType() == ReplicationEvent.Type.RESET) {
+
+                RingSnapshot<InetSocketAddress> clients = ring.get();
+
+                for (int i = 0; i < clients.size(); i++) {
+                    availableClients.remove(clients.getClient(i));
+                    leaseManager.release(clients.getClient(i));
+                    recordLeave(clients.getClient(i));
+                }
+
+                ring.set(availableClients.snapshot());
+                expectedSequence = event.getSequence() + 1;
+                awaitedSequence = 0;
+                resyncNeeded = false;
+
+                // the events of the new ring may have overtaken the reset
+                earlyEvents.headMap(expectedSequence).clear();
+                applyEarlyEvents();
+                return;
+            }
+
+            if (event.getType() == ReplicationEvent.Type.HEARTBEAT) {
+
+                if (!resyncNeeded && awaitedSequence >= expectedSequence) {
+                    requestResync();
+                }
+
+                awaitedSequence = event.getSequence();
+                return;
+            }
+
+            // while a resync is pending, the events may belong to the new ring, whose reset hasn't arrived yet
+            if (!resyncNeeded && event.getSequence() < expectedSequence) {
+                return;
+            }
+
+            earlyEvents.put(event.getSequence(), event);
+
+            if (earlyEvents.size() > MAX_EARLY_EVENTS) {
+                requestResync();
+            } else if (!resyncNeeded) {
+                applyEarlyEvents();
+            }
+
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the held back events following the last applied one. Must be called while holding the membership
+     * lock.
+     */
+    private void applyEarlyEvents() {
+
+        for (ReplicationEvent event = earlyEvents.remove(expectedSequence); event != null;
+             event = earlyEvents.remove(expectedSequence)) {
 
+            expectedSequence++;
+            InetSocketAddress client = event.getAddress();
 
-                @Override
-                public void run() {
+            switch (event.getType()) {
 
-                    synchronized (availableClients) {
-                        availableClients.checkLease();
+                case ADD -> {
+
+                    claimId(event.getId());
+
+                    if (!availableClients.contains(client)) {
+                        availableClients.add(event.getId(), client, new Timestamp(primaryContact));
+                        ring.set(availableClients.snapshot());
+                        recordJoin(event.getId(), client);
                     }
+
+                    leaseManager.renew(client, primaryContact);
                 }
 
-            }, LEASE_DURATION);
-            Message message = endpoint.blockingReceive();
-            executorService.execute(new BrokerTask(message));
+                case REMOVE -> {
 
+                    if (availableClients.contains(client)) {
+                        availableClients.remove(client);
+                        ring.set(availableClients.snapshot());
+                        recordLeave(client);
+                    }
 
+                    leaseManager.release(client);
+                }
+
+                case RENEW -> leaseManager.renew(client, primaryContact);
+            }
         }
+    }
 
-        executorService.shutdown();
+    /**
+     * Drops the held back events and asks the primary for its complete ring with the next subscription renewal.
+     * Must be called while holding the membership lock.
+     */
+    private void requestResync() {
 
+        resyncNeeded = true;
+        earlyEvents.clear();
     }
 
+    /**
+     * Starts a single broker on {@link Properties#PORT}, or one broker of a cluster if the broker's index and a
+     * comma separated list of all brokers' ports on {@link Properties#HOST} are given, e.g. {@code 1 4711,4712,4713}.
+     * {@code standby <port> <primary port>} starts a standby of the primary broker on the given port, which takes
+     * over when the primary fails.
+     */
     public static void main(String[] args) {
 
+        if (args.length == 3 && args[0].equals("standby")) {
+
+            instance = new Broker(0, List.of(new InetSocketAddress(Properties.HOST, Integer.parseInt(args[1]))),
+                    new InetSocketAddress(Properties.HOST, Integer.parseInt(args[2])));
+
+        } else if (args.length == 2) {
+
+            List<InetSocketAddress> brokers = new ArrayList<>();
+
+            for (String port : args[1].split(","))
+                brokers.add(new InetSocketAddress(Properties.HOST, Integer.parseInt(port.trim())));
+
+            instance = new Broker(Integer.parseInt(args[0]), brokers, null);
+        }
+
         Broker broker = getInstance();
 
         broker.broker();
@@ -122,8 +793,8 @@ public class Broker {
     }
 
     /**
-     * A helper class used by the executor framework. Whenever the broker receives a new message,
-     * a new {@code BrokerTask} gets passed to the executor service, enqueueing the task and eventually
+     * A helper class used by the executor framework. Whenever the broker has decrypted a new message,
+     * a new {@code BrokerTask} gets passed to the dispatch stage, enqueueing the task and eventually
      * handling the message.
      */
     private class BrokerTask implements Runnable {
@@ -143,7 +814,43 @@ public class Broker {
 
             Serializable payload = message.getPayload();
 
-            if (payload instanceof RegisterRequest) {
+            if (payload instanceof ReplicationEvent) {
+
+                if (message.getSender().equals(primary)) {
+                    applyReplicationEvent((ReplicationEvent) payload);
+                }
+
+                return;
+            }
+
+            InetSocketAddress primaryBroker = primary;
+
+            // a standby sends clients back to the primary as long as the primary is alive
+            if (primaryBroker != null && !(payload instanceof PoisonPill)) {
+
+                if (System.currentTimeMillis() - primaryContact <= LEASE_DURATION) {
+
+                    if (payload instanceof RegisterRequest) {
+                        endpoint.send(message.getSender(), new RegisterRedirect(primaryBroker));
+                    }
+
+                    return;
+                }
+
+                takeOver();
+            }
+
+            if (payload instanceof ReplicaSubscribe) {
+
+                membershipLock.lock();
+
+                try {
+                    replicator.subscribe(message.getSender(), ((ReplicaSubscribe) payload).isResync(), ring.get());
+                } finally {
+                    membershipLock.unlock();
+                }
+
+            } else if (payload instanceof RegisterRequest) {
 
                 register(message);
 
@@ -155,6 +862,10 @@ public class Broker {
 
                 handoffFish(message);
 
+            } else if (payload instanceof SegmentUpdate) {
+
+                receiveSegmentUpdate((SegmentUpdate) payload);
+
             } else if (payload instanceof PoisonPill) {
 
                 System.exit(0);
@@ -165,42 +876,58 @@ public class Broker {
 
         /**
          * Handles the registration of the message's sender. The sender gets added to the list of available clients
-         * if he isn't registered yet, otherwise the lease gets renewed. In the case of a newly registered client, the
-         * client and its left and right neighbors get a {@code NeighborUpdate}
-         * with the corresponding {@code InetSocketAddress} of their new neighbors,
-         * also the client gets a {@code RegisterResponse} confirming the (soft-state)
-         * registration for a given period of time.
+         * if he isn't registered yet, otherwise the lease gets renewed and confirmed by another
+         * {@code RegisterResponse}. A new client waits for the join window to pass and is then spliced into the
+         * ring together with all other clients registering meanwhile, see {@link #spliceJoins()}.
          *
          * @param message The message received by the broker
          */
-        public synchronized void register(Message message) {
+        public void register(Message message) {
 
             InetSocketAddress sender = message.getSender();
-            Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-            if (!availableClients.contains(sender)) {
 
-                int tankCount = availableClients.size() + 1;
-                availableClients.add("tank" + tankCount, sender, timestamp);
+            // in a cluster, each client is registered with the broker owning its segment
+            if (!segments.owns(sender)) {
+                endpoint.send(sender, new RegisterRedirect(segments.ownerOf(sender)));
+                return;
+            }
 
-                // give token to first client
-                if (availableClients.size() == 1) {
+            long now = System.currentTimeMillis();
+            leaseManager.renew(sender, now);
 
-                    endpoint.send(sender, new Token());
+            // renewals are the common case and don't change the ring
+            String id = ring.get().getId(sender);
 
-                }
+            if (id != null) {
+                endpoint.send(sender, new RegisterResponse(id, LEASE_DURATION));
+                replicator.renewed(sender);
+                return;
+            }
 
-                endpoint.send(sender, new RegisterResponse("tank" + tankCount, LEASE_DURATION));
+            membershipLock.lock();
 
-                InetSocketAddress leftNeighbor = availableClients.getLeftNeighborOf(sender);
-                InetSocketAddress rightNeighbor = availableClients.getRightNeighborOf(sender);
+            try {
 
-                endpoint.send(sender, new NeighborUpdate(leftNeighbor, rightNeighbor));
-                endpoint.send(leftNeighbor, new NeighborUpdate(availableClients.getLeftNeighborOf(leftNeighbor), sender));
-                endpoint.send(rightNeighbor, new NeighborUpdate(sender, availableClients.getRightNeighborOf(rightNeighbor)));
+                // the client may have been added since the snapshot was read
+                if (availableClients.contains(sender)) {
+                    endpoint.send(sender, new RegisterResponse(availableClients.getId(sender), LEASE_DURATION));
+                    replicator.renewed(sender);
+                    return;
+                }
 
-            } else {
+                // the first join of a batch opens the window; a repeated request just waits for the batch
+                if (!pendingJoins.add(sender) || pendingJoins.size() > 1) {
+                    return;
+                }
 
-                availableClients.update(sender, timestamp);
+            } finally {
+                membershipLock.unlock();
+            }
+
+            if (Properties.JOIN_WINDOW_MILLIS > 0) {
+                leaseSweeper.schedule(Broker.this::spliceJoins, Properties.JOIN_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                spliceJoins();
             }
         }
 
@@ -210,45 +937,96 @@ public class Broker {
          *
          * @param message The message received by the broker
          */
-        public synchronized void deregister(Message message) {
+        public void deregister(Message message) {
 
             InetSocketAddress sender = message.getSender();
-            InetSocketAddress leftNeighbor = availableClients.getLeftNeighborOf(sender);
-            InetSocketAddress rightNeighbor = availableClients.getRightNeighborOf(sender);
 
-            endpoint.send(leftNeighbor, new NeighborUpdate(availableClients.getLeftNeighborOf(leftNeighbor), rightNeighbor));
-            endpoint.send(rightNeighbor, new NeighborUpdate(leftNeighbor, availableClients.getRightNeighborOf(rightNeighbor)));
-            availableClients.remove(availableClients.indexOf(sender));
+            leaseManager.release(sender);
+            slowDownHints.remove(sender);
+
+            membershipLock.lock();
+
+            try {
+
+                pendingJoins.remove(sender);
+
+                if (!availableClients.contains(sender)) {
+                    return;
+                }
+
+                InetSocketAddress leftNeighbor = leftNeighborOf(sender);
+                InetSocketAddress rightNeighbor = rightNeighborOf(sender);
+
+                availableClients.remove(sender);
+                ring.set(availableClients.snapshot());
+                recordLeave(sender);
 
+                sendNeighborUpdate(leftNeighbor);
+                sendNeighborUpdate(rightNeighbor);
+                announceSegment(false);
+
+            } finally {
+                membershipLock.unlock();
+            }
+
+        }
+
+        /**
+         * Stores the boundaries of another broker's segment. If they changed, the first and the last client of this
+         * broker's segment get their possibly new neighbors.
+         *
+         * @param update the announcement of another broker of the cluster
+         */
+        public void receiveSegmentUpdate(SegmentUpdate update) {
+
+            if (!segments.update(update.getShard(), update.getFirst(), update.getLast())) {
+                return;
+            }
+
+            membershipLock.lock();
+
+            try {
+
+                RingSnapshot<InetSocketAddress> segment = ring.get();
+                sendNeighborUpdate(segment.getFirst());
+
+                if (segment.size() > 1) {
+                    sendNeighborUpdate(segment.getLast());
+                }
+
+            } finally {
+                membershipLock.unlock();
+            }
         }
 
         /**
          * Hands off the fish referenced in the message to the correct neighbor
-         * depending on the swim direction of the fish.
+         * depending on the swim direction of the fish. Clients send fishes directly to their neighbors,
+         * so this is only the fallback for clients which don't know their neighbor yet.
+         * Routing reads the current ring snapshot and never locks.
          *
          * @param message the message sent by a client; contains the address
          * of the sender and the fish which will be handed off.
          */
-        public synchronized void handoffFish(Message message) {
+        public void handoffFish(Message message) {
 
             Serializable payload = message.getPayload();
             InetSocketAddress sender = message.getSender();
 
-            // making use of a read write lock to enable multithreaded execution
-            lock.writeLock().lock();
-
             FishModel fish = ((HandoffRequest) payload).getFish();
-            Direction exitDirection = fish.getDirection();
 
-            InetSocketAddress handoffTarget;
-            if (exitDirection == Direction.LEFT) {
-                handoffTarget = availableClients.getLeftNeighborOf(availableClients.indexOf(sender));
-            } else {
-                handoffTarget = availableClients.getRightNeighborOf(availableClients.indexOf(sender));
+            InetSocketAddress handoffTarget = fish.getDirection() == Direction.LEFT
+                    ? leftNeighborOf(sender) : rightNeighborOf(sender);
+
+            // the sender isn't registered (anymore)
+            if (handoffTarget == null) {
+                return;
             }
 
-            endpoint.send(handoffTarget, payload);
-            lock.writeLock().unlock();
+            // the receiver acknowledges the handoff to the tank which sent the fish, not to the broker
+            HandoffRequest request = (HandoffRequest) payload;
+            endpoint.send(handoffTarget, request.getOrigin() != null || request.getSequence() == 0 ? request
+                    : new HandoffRequest(fish, request.getSequence(), sender));
         }
 
     }
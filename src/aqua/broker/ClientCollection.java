@@ -1,60 +1,100 @@
 package aqua.broker;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 /*
  * This class is not thread-safe and hence must be used in a thread-safe way, e.g. thread confined or
  * externally synchronized.
+ *
+ * The clients are kept in a doubly linked ring, indexed by address and by id, so that membership tests,
+ * neighbor lookups, lease renewals, insertions and removals by address or id run in constant time.
+ * Positional access (by index) is still supported but has to walk the ring.
  */
 
 public class ClientCollection<E> {
 
-    private final List<Client> clients;
+    private final Map<E, Client> clientsByAddress;
+    private final Map<String, Client> clientsById;
+    private Client head;
 
     public ClientCollection() {
 
-        clients = new ArrayList<>();
+        clientsByAddress = new HashMap<>();
+        clientsById = new HashMap<>();
     }
 
+    /**
+     * Appends a new client to the end of the ring, i.e. between the current last and first client.
+     */
     public ClientCollection<E> add(String id, E e, Timestamp timestamp) {
 
-        clients.add(new Client(id, e, timestamp));
+        Client client = new Client(id, e, timestamp);
+
+        if (head == null) {
+
+            client.left = client;
+            client.right = client;
+            head = client;
+
+        } else {
+
+            Client tail = head.left;
+            client.left = tail;
+            client.right = head;
+            tail.right = client;
+            head.left = client;
+        }
+
+        clientsByAddress.put(e, client);
+        clientsById.put(id, client);
         return this;
     }
 
     public ClientCollection<E> update(E e, Timestamp timestamp) {
 
-        clients.get(indexOf(e)).setTimestamp(timestamp);
+        Client client = clientsByAddress.get(e);
+
+        if (client != null) {
+            client.setTimestamp(timestamp);
+        }
+
         return this;
     }
 
     public ClientCollection<E> remove(int index) {
 
-        clients.remove(index);
+        unlink(nodeAt(index));
+        return this;
+    }
+
+    public ClientCollection<E> remove(E e) {
+
+        Client client = clientsByAddress.get(e);
+
+        if (client != null) {
+            unlink(client);
+        }
+
         return this;
     }
 
     public boolean contains(E e) {
 
-        return clients.contains(e);
+        return clientsByAddress.containsKey(e);
     }
 
     public int indexOf(String id) {
 
-        for (int i = 0; i < clients.size(); i++)
-            if (clients.get(i).id.equals(id))
-                return i;
-        return -1;
+        Client client = clientsById.get(id);
+        return client == null ? -1 : positionOf(client);
     }
 
     public int indexOf(E client) {
 
-        for (int i = 0; i < clients.size(); i++)
-            if (clients.get(i).address.equals(client))
-                return i;
-        return -1;
+        Client node = clientsByAddress.get(client);
+        return node == null ? -1 : positionOf(node);
     }
 
     /**
@@ -63,48 +103,142 @@ public class ClientCollection<E> {
      */
     public E getClient(int index) {
 
-        return clients.get(index).address;
+        return nodeAt(index).address;
     }
 
     public E getClient(String id) {
 
-        return clients.get(clients.indexOf(id)).address;
+        Client client = clientsById.get(id);
+        return client == null ? null : client.address;
+    }
+
+    /**
+     * @param e address of a registered client
+     * @return the id of the client, or {@code null} if the client isn't registered
+     */
+    public String getId(E e) {
+
+        Client client = clientsByAddress.get(e);
+        return client == null ? null : client.id;
     }
 
     public int size() {
 
-        return clients.size();
+        return clientsByAddress.size();
     }
 
     public E getLeftNeighborOf(int index) {
 
-        return index == 0 ? clients.get(clients.size() - 1).address : clients.get(index - 1).address;
+        return nodeAt(index).left.address;
     }
 
     public E getLeftNeighborOf(E e) {
 
-        return getLeftNeighborOf(indexOf(e));
+        Client client = clientsByAddress.get(e);
+        return client == null ? null : client.left.address;
     }
 
     public E getRightNeighborOf(int index) {
 
-        return index < clients.size() - 1 ? clients.get(index + 1).address : clients.get(0).address;
+        return nodeAt(index).right.address;
     }
 
     public E getRightNeighborOf(E e) {
 
-        return getRightNeighborOf(indexOf(e));
+        Client client = clientsByAddress.get(e);
+        return client == null ? null : client.right.address;
+    }
+
+    /**
+     * @return an immutable copy of the ring, starting with the first client
+     */
+    public RingSnapshot<E> snapshot() {
+
+        Object[] addresses = new Object[size()];
+        String[] ids = new String[size()];
+        Client client = head;
+
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = client.address;
+            ids[i] = client.id;
+            client = client.right;
+        }
+
+        return new RingSnapshot<>(addresses, ids);
     }
 
     public void checkLease() {
 
-        clients.removeIf(client -> {
+        if (head == null) {
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        Client client = head;
+
+        for (int i = size(); i > 0; i--) {
+
+            Client next = client.right;
+
+            if (currentTime - client.timestamp.getTime() > Broker.LEASE_DURATION) {
+                unlink(client);
+            }
+
+            client = next;
+        }
+    }
+
+    private void unlink(Client client) {
+
+        clientsByAddress.remove(client.address);
+        clientsById.remove(client.id);
+
+        if (client.right == client) {
+
+            head = null;
+
+        } else {
+
+            client.left.right = client.right;
+            client.right.left = client.left;
+
+            if (head == client) {
+                head = client.right;
+            }
+        }
+
+        client.left = null;
+        client.right = null;
+    }
+
+    private Client nodeAt(int index) {
+
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        // walk in whichever direction is shorter
+        Client client = head;
+
+        if (index <= size() / 2) {
+            for (int i = 0; i < index; i++)
+                client = client.right;
+        } else {
+            for (int i = size(); i > index; i--)
+                client = client.left;
+        }
+
+        return client;
+    }
+
+    private int positionOf(Client client) {
+
+        int index = 0;
 
-            Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-            long timeDifference = currentTimestamp.getTime() - client.timestamp.getTime();
+        for (Client current = head; current != client; current = current.right)
+            index++;
 
-            return timeDifference > Broker.LEASE_DURATION;
-        });
+        return index;
     }
 
     private class Client {
@@ -112,6 +246,8 @@ public class ClientCollection<E> {
         final String id;
         final E address;
         Timestamp timestamp;
+        Client left;
+        Client right;
 
         Client(String id, E address, Timestamp timestamp) {
 
@@ -0,0 +1,146 @@
+package aqua.broker;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares the execution modes of the broker's dispatch stage with 1k and 10k registered tanks.
+ * <p>
+ * Every tank registers once and then renews its lease a few times. Like the broker's handlers, each message updates
+ * the client collection under the membership lock and then answers the tank. Every hundredth tank is slow: sending
+ * to it blocks for {@link #SLOW_SEND_MILLIS}, as a send does while it waits for a key exchange. The benchmark reports
+ * the throughput and the latency of the messages of the other tanks, which a fixed pool makes wait behind the slow
+ * ones.
+ * <p>
+ * The modes are the fixed pool, one virtual thread per message, and one platform thread per message. The latter
+ * runs the same per-task code as the virtual mode, so it is also covered on runtimes without virtual threads, where
+ * the virtual mode is skipped. A mode fails if a message is lost or the stage doesn't shut down in
+ * time.
+ * <p>
+ * Usage: {@code DispatchBenchmark [tanks ...]}
+ */
+public class DispatchBenchmark {
+
+    private static final int RENEWALS = 5;
+    private static final int SLOW_TANKS_EVERY = 100;
+    private static final long SLOW_SEND_MILLIS = 20;
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    public static void main(String[] args) throws Exception {
+
+        int[] tankCounts = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1000, 10000};
+        boolean failed = false;
+
+        System.out.printf("%-20s %6s %10s %10s %14s %14s%n", "mode", "tanks", "messages", "msg/s", "fast p50 us",
+                "fast p99 us");
+
+        for (int tanks : tankCounts) {
+
+            failed |= !run("fixed pool", tanks,
+                    new PipelineStage("dispatch", Broker.THREAD_POOL_SIZE, Broker.STAGE_QUEUE_CAPACITY));
+
+            try {
+                failed |= !run("virtual per task", tanks, PipelineStage.virtualThreadPerTask("dispatch"));
+            } catch (UnsupportedOperationException e) {
+                System.out.printf("%-20s %6d %s%n", "virtual per task", tanks, "skipped: " + e.getMessage());
+            }
+
+            failed |= !run("platform per task", tanks,
+                    PipelineStage.threadPerTask("dispatch", Executors.newCachedThreadPool()));
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return true if every message was handled and the stage shut down in time
+     */
+    private static boolean run(String mode, int tanks, PipelineStage stage) throws InterruptedException {
+
+        ClientCollection<InetSocketAddress> clients = new ClientCollection<>();
+        Lock membershipLock = new ReentrantLock();
+        InetSocketAddress[] addresses = new InetSocketAddress[tanks];
+
+        for (int i = 0; i < tanks; i++)
+            addresses[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), 10000 + i);
+
+        int messages = tanks * (1 + RENEWALS);
+        long[] fastLatencies = new long[messages];
+        AtomicInteger fastCount = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+        long start = System.nanoTime();
+
+        for (int round = 0; round <= RENEWALS; round++) {
+
+            boolean registration = round == 0;
+            AtomicInteger remaining = new AtomicInteger(tanks);
+
+            for (int i = 0; i < tanks; i++) {
+
+                InetSocketAddress tank = addresses[i];
+                boolean slow = i % SLOW_TANKS_EVERY == 0;
+                String id = "tank" + i;
+                long submittedAt = System.nanoTime();
+
+                stage.submit(() -> {
+
+                    membershipLock.lock();
+
+                    try {
+
+                        Timestamp now = new Timestamp(System.currentTimeMillis());
+
+                        if (registration) {
+                            clients.add(id, tank, now);
+                        } else {
+                            clients.update(tank, now);
+                        }
+
+                    } finally {
+                        membershipLock.unlock();
+                    }
+
+                    if (slow) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SLOW_SEND_MILLIS));
+                    } else {
+                        fastLatencies[fastCount.getAndIncrement()] = System.nanoTime() - submittedAt;
+                    }
+
+                    handled.incrementAndGet();
+                    remaining.decrementAndGet();
+                });
+            }
+
+            // the tanks renew their leases one after another, as they do once per lease
+            while (remaining.get() > 0)
+                Thread.sleep(1);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        boolean terminated = stage.shutdown(SHUTDOWN_TIMEOUT);
+        long[] latencies = Arrays.copyOf(fastLatencies, fastCount.get());
+        Arrays.sort(latencies);
+
+        System.out.printf("%-20s %6d %10d %10.0f %14d %14d%n", mode, tanks, messages, messages / (elapsed / 1e9),
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]),
+                TimeUnit.NANOSECONDS.toMicros(latencies[(int) (latencies.length * 0.99)]));
+
+        if (handled.get() != messages || clients.size() != tanks || !terminated) {
+            System.out.println(mode + " failed: handled " + handled.get() + " of " + messages + " messages, "
+                    + clients.size() + " of " + tanks + " tanks registered, terminated " + terminated);
+            return false;
+        }
+
+        return true;
+    }
+
+}
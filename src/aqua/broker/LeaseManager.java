@@ -0,0 +1,140 @@
+package aqua.broker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the lease deadlines of all registered clients in deadline order.
+ * <p>
+ * Every lease is granted for the same duration, so a renewal always produces the latest deadline. Renewing
+ * therefore moves the client to the tail of an insertion-ordered map and the head always holds the earliest
+ * deadline. Granting, renewing and releasing a lease is O(1); expiring only touches the clients whose deadline
+ * has actually passed.
+ * <p>
+ * A client the broker didn't hear from itself, e.g. one recovered from the journal, may get a longer grace lease
+ * instead. Grace leases are kept in a map of their own, which is in deadline order for the same reason; the first
+ * renewal turns a grace lease into a regular one.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <E> the client address type
+ */
+public class LeaseManager<E> {
+
+    private final long leaseDuration;
+    private final long graceDuration;
+    private final Map<E, Long> deadlines;
+    private final Map<E, Long> graceDeadlines;
+
+    public LeaseManager(long leaseDuration) {
+
+        this(leaseDuration, leaseDuration);
+    }
+
+    /**
+     * @param leaseDuration the duration of a regular lease in milliseconds
+     * @param graceDuration the duration of a grace lease in milliseconds
+     */
+    public LeaseManager(long leaseDuration, long graceDuration) {
+
+        this.leaseDuration = leaseDuration;
+        this.graceDuration = graceDuration;
+        deadlines = new LinkedHashMap<>();
+        graceDeadlines = new LinkedHashMap<>();
+    }
+
+    public long getLeaseDuration() {
+
+        return leaseDuration;
+    }
+
+    /**
+     * Grants a new lease or renews the existing lease of the given client.
+     *
+     * @param e the client
+     * @param now the current time in milliseconds
+     */
+    public synchronized void renew(E e, long now) {
+
+        graceDeadlines.remove(e);
+        deadlines.remove(e);
+        deadlines.put(e, now + leaseDuration);
+    }
+
+    /**
+     * Grants the given client a grace lease, replacing its current lease.
+     *
+     * @param e the client
+     * @param now the current time in milliseconds
+     */
+    public synchronized void grantGrace(E e, long now) {
+
+        deadlines.remove(e);
+        graceDeadlines.remove(e);
+        graceDeadlines.put(e, now + graceDuration);
+    }
+
+    /**
+     * Drops the lease of a client which left the ring on its own.
+     *
+     * @param e the client
+     */
+    public synchronized void release(E e) {
+
+        deadlines.remove(e);
+        graceDeadlines.remove(e);
+    }
+
+    public synchronized int size() {
+
+        return deadlines.size() + graceDeadlines.size();
+    }
+
+    /**
+     * Removes and returns all clients whose lease deadline lies before the given time.
+     *
+     * @param now the current time in milliseconds
+     * @return the expired clients, ordered by deadline
+     */
+    public synchronized List<E> expire(long now) {
+
+        List<E> expired = new ArrayList<>();
+        Iterator<Map.Entry<E, Long>> regular = deadlines.entrySet().iterator();
+        Iterator<Map.Entry<E, Long>> grace = graceDeadlines.entrySet().iterator();
+        Map.Entry<E, Long> nextRegular = nextExpired(regular, now);
+        Map.Entry<E, Long> nextGrace = nextExpired(grace, now);
+
+        // merges the expired heads of both maps
+        while (nextRegular != null || nextGrace != null) {
+
+            if (nextGrace == null || nextRegular != null && nextRegular.getValue() <= nextGrace.getValue()) {
+                expired.add(nextRegular.getKey());
+                regular.remove();
+                nextRegular = nextExpired(regular, now);
+            } else {
+                expired.add(nextGrace.getKey());
+                grace.remove();
+                nextGrace = nextExpired(grace, now);
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * @return the next entry if its deadline lies before the given time, otherwise {@code null}
+     */
+    private static <E> Map.Entry<E, Long> nextExpired(Iterator<Map.Entry<E, Long>> it, long now) {
+
+        if (!it.hasNext()) {
+            return null;
+        }
+
+        Map.Entry<E, Long> entry = it.next();
+        return entry.getValue() < now ? entry : null;
+    }
+
+}
@@ -0,0 +1,264 @@
+package aqua.broker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+
+/**
+ * Records the broker's membership changes on disk, so a restarted broker can rebuild the exact ring, including
+ * the clients' ids and order, instead of having all clients register anew.
+ * <p>
+ * Joins and leaves are appended to a memory-mapped journal. Since the mapped pages belong to the operating system,
+ * a record survives a crash of the broker as soon as it is written. A record's length is written after its content,
+ * so a record torn by a crash has length 0 and ends the replay. From time to time, and whenever the journal is
+ * full, the whole ring is compacted into a snapshot file and the journal starts over.
+ * <p>
+ * The snapshot and the journal carry a generation number. A journal is only replayed on top of the snapshot of the
+ * same generation, so a crash between writing a snapshot and resetting the journal doesn't replay old records.
+ * <p>
+ * This class is not thread-safe; the broker only uses it while holding its membership lock.
+ */
+class MembershipJournal {
+
+    private static final String SNAPSHOT_FILE = "membership.snapshot";
+    private static final String JOURNAL_FILE = "membership.journal";
+    private static final int JOURNAL_SIZE = 1 << 20;
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final byte JOIN = 1;
+    private static final byte LEAVE = 2;
+    private final Path directory;
+    private final MappedByteBuffer journal;
+    private long generation;
+    private int records;
+
+    /**
+     * Opens the journal in the given directory, creating it if necessary.
+     */
+    MembershipJournal(Path directory) throws IOException {
+
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        try (FileChannel channel = FileChannel.open(directory.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+        }
+    }
+
+    /**
+     * Rebuilds the ring from the snapshot and the journal and positions the journal after its last record.
+     *
+     * @param clients an empty collection receiving the recovered clients in ring order
+     * @return the number of recovered clients
+     */
+    int recover(ClientCollection<InetSocketAddress> clients) throws IOException {
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        generation = 0;
+
+        if (Files.isReadable(snapshotFile)) {
+
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshotFile))) {
+
+                generation = in.readLong();
+
+                for (int count = in.readInt(); count > 0; count--) {
+
+                    String id = in.readUTF();
+                    byte[] address = new byte[in.readUnsignedByte()];
+                    in.readFully(address);
+                    clients.add(id, new InetSocketAddress(InetAddress.getByAddress(address), in.readUnsignedShort()), now);
+                }
+            }
+        }
+
+        journal.position(0);
+
+        if (journal.getLong() != generation) {
+            // written before the snapshot, which already contains all of its records
+            reset();
+            return clients.size();
+        }
+
+        records = 0;
+
+        for (int length = journal.getInt(); length > 0; length = journal.getInt()) {
+
+            ByteBuffer record = journal.slice().limit(length);
+            byte type = record.get();
+
+            if (type == JOIN) {
+
+                String id = getString(record);
+                InetSocketAddress address = getAddress(record);
+
+                if (!clients.contains(address)) {
+                    clients.add(id, address, now);
+                }
+
+            } else if (type == LEAVE) {
+                clients.remove(getAddress(record));
+            }
+
+            journal.position(journal.position() + length);
+            records++;
+        }
+
+        // the next record overwrites the terminating length
+        journal.position(journal.position() - Integer.BYTES);
+        return clients.size();
+    }
+
+    /**
+     * Records a client appended to the end of the ring.
+     *
+     * @return false if the journal is full and has to be compacted
+     */
+    boolean recordJoin(String id, InetSocketAddress address) {
+
+        byte[] encodedId = id.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + Short.BYTES + encodedId.length + addressLength(address);
+
+        if (!hasRoom(length)) {
+            return false;
+        }
+
+        int start = journal.position();
+        journal.position(start + Integer.BYTES);
+        journal.put(JOIN);
+        journal.putShort((short) encodedId.length).put(encodedId);
+        putAddress(address);
+        commit(start, length);
+        return true;
+    }
+
+    /**
+     * Records a client removed from the ring.
+     *
+     * @return false if the journal is full and has to be compacted
+     */
+    boolean recordLeave(InetSocketAddress address) {
+
+        int length = 1 + addressLength(address);
+
+        if (!hasRoom(length)) {
+            return false;
+        }
+
+        int start = journal.position();
+        journal.position(start + Integer.BYTES);
+        journal.put(LEAVE);
+        putAddress(address);
+        commit(start, length);
+        return true;
+    }
+
+    /**
+     * @return the number of records appended since the last compaction
+     */
+    int getRecords() {
+
+        return records;
+    }
+
+    /**
+     * Writes the given ring to a new snapshot and empties the journal.
+     *
+     * @param ring the current ring, including all recorded changes
+     */
+    void compact(RingSnapshot<InetSocketAddress> ring) throws IOException {
+
+        Path temporaryFile = Files.createTempFile(directory, SNAPSHOT_FILE, ".tmp");
+
+        try (OutputStream file = Files.newOutputStream(temporaryFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+
+            out.writeLong(generation + 1);
+            out.writeInt(ring.size());
+
+            for (int i = 0; i < ring.size(); i++) {
+
+                InetSocketAddress address = ring.getClient(i);
+                out.writeUTF(ring.getId(address));
+                byte[] encodedAddress = address.getAddress().getAddress();
+                out.writeByte(encodedAddress.length);
+                out.write(encodedAddress);
+                out.writeShort(address.getPort());
+            }
+        }
+
+        Files.move(temporaryFile, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        generation++;
+        reset();
+    }
+
+    private void reset() {
+
+        byte[] zeros = new byte[8192];
+        journal.position(0);
+
+        while (journal.hasRemaining())
+            journal.put(zeros, 0, Math.min(zeros.length, journal.remaining()));
+
+        journal.putLong(0, generation);
+        journal.position(HEADER_SIZE);
+        records = 0;
+    }
+
+    private boolean hasRoom(int length) {
+
+        // the record, its length and the terminating length
+        return journal.remaining() >= length + 2 * Integer.BYTES;
+    }
+
+    private void commit(int start, int length) {
+
+        // written last, so a torn record ends the replay
+        journal.putInt(start, length);
+        records++;
+    }
+
+    private void putAddress(InetSocketAddress address) {
+
+        byte[] encodedAddress = address.getAddress().getAddress();
+        journal.put((byte) encodedAddress.length).put(encodedAddress);
+        journal.putShort((short) address.getPort());
+    }
+
+    private static int addressLength(InetSocketAddress address) {
+
+        return 1 + address.getAddress().getAddress().length + Short.BYTES;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static InetSocketAddress getAddress(ByteBuffer buffer) throws IOException {
+
+        byte[] address = new byte[buffer.get()];
+        buffer.get(address);
+        return new InetSocketAddress(InetAddress.getByAddress(address), Short.toUnsignedInt(buffer.getShort()));
+    }
+
+}
@@ -0,0 +1,26 @@
+package aqua.broker;
+
+/**
+ * Decides what happens to a message arriving at the broker while its lane of the dispatch queue is full.
+ * Control messages are never dropped; if their lane is full, the receiving thread handles them itself.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drops the oldest waiting data message to make room for a new one, since it is the most likely to be stale.
+     * A new background message is dropped if its lane is full.
+     */
+    DROP_OLDEST_DATA,
+    /**
+     * Lets the lanes share one budget and sheds waiting messages of lower lanes, background before data, to make
+     * room for a message of a higher lane. A message is only dropped itself if no lower lane has any messages
+     * waiting.
+     */
+    SHED_LOWEST_PRIORITY,
+    /**
+     * Asks the sender to hold back its fishes for a while, then has the receiving thread handle the message
+     * itself, which slows down the intake.
+     */
+    SLOW_DOWN_HINT
+
+}
@@ -0,0 +1,395 @@
+package aqua.broker;
+
+import aqua.common.scheduling.Lane;
+import aqua.common.scheduling.LaneQueue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One stage of the broker's receive pipeline: a fixed number of worker threads fed by a bounded queue.
+ * <p>
+ * If the queue is full, the submitting thread runs the task itself. This throttles the previous stage instead of
+ * letting the queue grow without limit. Every stage counts its processed tasks and the time between submission and
+ * completion, so the queue depth and latency of each stage can be observed separately.
+ * <p>
+ * Alternatively a stage can run every task in a virtual thread of its own, so a task blocking on the network
+ * doesn't hold up the others. Such a stage has no queue; its depth is the number of unfinished tasks.
+ * <p>
+ * A stage with lanes keeps a bounded queue per {@link Lane} and always runs the waiting task of the highest
+ * priority first. What happens to a task whose lane is full is decided by the stage's {@link OverflowPolicy}; the
+ * tasks dropped by the policy are counted per lane.
+ */
+public class PipelineStage {
+
+    private final String name;
+    private final BlockingQueue<Runnable> queue;
+    private final ExecutorService executor;
+    private final LongAdder submitted;
+    private final LongAdder processed;
+    private final LongAdder totalLatencyNanos;
+    private final LongAdder[] dropped;
+    private final OverflowPolicy overflowPolicy;
+    private final Consumer<Runnable> slowDownHandler;
+
+    public PipelineStage(String name, int threads, int capacity) {
+
+        this(name, threads, new ArrayBlockingQueue<>(capacity), null, task -> {
+        });
+    }
+
+    private PipelineStage(String name, int threads, BlockingQueue<Runnable> queue, OverflowPolicy overflowPolicy,
+                          Consumer<Runnable> slowDownHandler) {
+
+        this.name = name;
+        this.queue = queue;
+        this.overflowPolicy = overflowPolicy;
+        this.slowDownHandler = slowDownHandler;
+        submitted = new LongAdder();
+        processed = new LongAdder();
+        totalLatencyNanos = new LongAdder();
+        dropped = newCounters();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                overflowPolicy == null ? new ThreadPoolExecutor.CallerRunsPolicy() : this::overflow);
+    }
+
+    private PipelineStage(String name, ExecutorService executor) {
+
+        this.name = name;
+        this.executor = executor;
+        queue = null;
+        overflowPolicy = null;
+        slowDownHandler = task -> {
+        };
+        submitted = new LongAdder();
+        processed = new LongAdder();
+        totalLatencyNanos = new LongAdder();
+        dropped = newCounters();
+    }
+
+    /**
+     * Creates a stage with a bounded queue per lane, whose workers take control tasks before data tasks and data
+     * tasks before background tasks. If the lane of a control task is full, the submitting thread runs it itself;
+     * other tasks are handled according to the overflow policy. Under {@link OverflowPolicy#SHED_LOWEST_PRIORITY}
+     * the lanes share one budget of {@code capacity} tasks per lane instead, so any lane may use the room the
+     * others leave.
+     *
+     * @param name the stage's name
+     * @param threads the number of worker threads
+     * @param capacity the queue capacity of each lane
+     * @param overflowPolicy decides what happens to a task whose lane is full
+     * @param slowDownHandler receives the overflowing tasks under {@link OverflowPolicy#SLOW_DOWN_HINT}
+     */
+    public static PipelineStage withLanes(String name, int threads, int capacity, OverflowPolicy overflowPolicy,
+                                          Consumer<Runnable> slowDownHandler) {
+
+        Function<Runnable, Lane> classifier = task -> task instanceof StageTask ? ((StageTask) task).lane : Lane.DATA;
+        int totalCapacity = capacity * Lane.values().length;
+
+        return new PipelineStage(name, threads, overflowPolicy == OverflowPolicy.SHED_LOWEST_PRIORITY
+                ? new LaneQueue<>(totalCapacity, totalCapacity, classifier)
+                : new LaneQueue<>(capacity, classifier),
+                overflowPolicy, slowDownHandler);
+    }
+
+    /**
+     * Creates a stage running each task in a new virtual thread. Virtual threads require Java 21.
+     *
+     * @param name the stage's name
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static PipelineStage virtualThreadPerTask(String name) {
+
+        try {
+
+            // looked up reflectively, so the broker still compiles and runs on runtimes without virtual threads
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+            return threadPerTask(name, executor);
+
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21, stage " + name
+                    + " can't run on Java " + Runtime.version().feature(), e);
+        }
+    }
+
+    /**
+     * Creates a stage handing each task to the given executor, which is expected to start a thread per task.
+     *
+     * @param name the stage's name
+     * @param executor the executor running the tasks
+     */
+    static PipelineStage threadPerTask(String name, ExecutorService executor) {
+
+        return new PipelineStage(name, executor);
+    }
+
+    /**
+     * Enqueues the given task, or runs it in the calling thread if the stage's queue is full.
+     *
+     * @param task the task to be executed by this stage
+     */
+    public void submit(Runnable task) {
+
+        submit(Lane.DATA, task);
+    }
+
+    /**
+     * Enqueues the given task in the given lane, or runs it in the calling thread if the lane is full. The lane is
+     * ignored if the stage has no lanes.
+     *
+     * @param lane the priority of the task
+     * @param task the task to be executed by this stage
+     */
+    public void submit(Lane lane, Runnable task) {
+
+        submitted.increment();
+        executor.execute(new StageTask(lane, task));
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    /**
+     * @return true if the stage runs each task in a thread of its own, false if it has a fixed pool
+     */
+    public boolean isThreadPerTask() {
+
+        return queue == null;
+    }
+
+    /**
+     * @return the number of tasks waiting in the stage's queue, or the number of unfinished tasks if the stage
+     * runs each task in a thread of its own
+     */
+    public int getDepth() {
+
+        return queue != null ? queue.size() : (int) (submitted.sum() - processed.sum());
+    }
+
+    /**
+     * @return the number of tasks waiting in the given lane, or 0 if the stage has no lanes
+     */
+    public int getDepth(Lane lane) {
+
+        return queue instanceof LaneQueue ? ((LaneQueue<Runnable>) queue).size(lane) : 0;
+    }
+
+    /**
+     * @return the number of tasks of the given lane dropped by the overflow policy
+     */
+    public long getDropped(Lane lane) {
+
+        return dropped[lane.ordinal()].sum();
+    }
+
+    public long getProcessed() {
+
+        return processed.sum();
+    }
+
+    /**
+     * @return the mean time from submission to completion of a task in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+
+        long count = processed.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / count;
+    }
+
+    /**
+     * Stops accepting tasks and waits for the submitted ones to finish. Tasks still running after the timeout are
+     * interrupted.
+     *
+     * @param timeout the time in milliseconds to wait for the submitted tasks
+     * @return true if all tasks finished in time
+     */
+    public boolean shutdown(long timeout) {
+
+        return shutdown(timeout, this);
+    }
+
+    /**
+     * Shuts down the stages of a pipeline within one timeout, in the order they are passed. A stage is only shut
+     * down once the stages before it have finished, as their tasks still submit to it. When the timeout has passed,
+     * the running tasks of the remaining stages are interrupted and their waiting tasks discarded.
+     *
+     * @param timeout the time in milliseconds to wait for the submitted tasks of all stages
+     * @param stages the stages, each one feeding the next
+     * @return true if all tasks finished in time
+     */
+    public static boolean shutdown(long timeout, PipelineStage... stages) {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean terminated = true;
+
+        for (PipelineStage stage : stages) {
+
+            stage.executor.shutdown();
+
+            try {
+                terminated = terminated
+                        && stage.executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminated = false;
+            }
+
+            if (!terminated) {
+                stage.executor.shutdownNow();
+            }
+        }
+
+        return terminated;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder lanes = new StringBuilder();
+
+        if (queue instanceof LaneQueue) {
+
+            for (Lane lane : Lane.values())
+                lanes.append(", ").append(lane.name().toLowerCase()).append('=').append(getDepth(lane));
+
+            for (Lane lane : Lane.values())
+                lanes.append(", dropped.").append(lane.name().toLowerCase()).append('=').append(getDropped(lane));
+        }
+
+        return name + "[depth=" + getDepth() + lanes + ", processed=" + getProcessed()
+                + ", avgLatency=" + TimeUnit.NANOSECONDS.toMicros(getAverageLatencyNanos()) + "us]";
+    }
+
+    /**
+     * Called by the executor if the lane of the given task is full.
+     */
+    private void overflow(Runnable runnable, ThreadPoolExecutor executor) {
+
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        StageTask task = (StageTask) runnable;
+        LaneQueue<Runnable> lanes = (LaneQueue<Runnable>) queue;
+
+        if (overflowPolicy == OverflowPolicy.SHED_LOWEST_PRIORITY) {
+            shed(task, lanes);
+            return;
+        }
+
+        if (task.lane == Lane.CONTROL) {
+            task.run();
+            return;
+        }
+
+        switch (overflowPolicy) {
+
+            case DROP_OLDEST_DATA -> {
+
+                // only data goes stale while it waits, a full background lane keeps its messages
+                if (task.lane == Lane.DATA) {
+                    drop(lanes.poll(Lane.DATA));
+                }
+
+                if (!lanes.offer(task)) {
+                    drop(task);
+                }
+            }
+
+            case SLOW_DOWN_HINT -> {
+
+                slowDownHandler.accept(task.task);
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Drops waiting tasks of lower lanes, the lowest lane first, until the given task fits into the shared budget.
+     * If only tasks of its own or higher lanes are waiting, a control task is run by the submitting thread and any
+     * other task is dropped.
+     */
+    private void shed(StageTask task, LaneQueue<Runnable> lanes) {
+
+        while (!lanes.offer(task)) {
+
+            Runnable shed = lanes.shed(task.lane);
+
+            if (shed != null) {
+                drop(shed);
+            } else if (task.lane == Lane.CONTROL) {
+                task.run();
+                return;
+            } else {
+                drop(task);
+                return;
+            }
+        }
+    }
+
+    private void drop(Runnable task) {
+
+        if (task != null) {
+            dropped[((StageTask) task).lane.ordinal()].increment();
+        }
+    }
+
+    private static LongAdder[] newCounters() {
+
+        LongAdder[] counters = new LongAdder[Lane.values().length];
+
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+
+        return counters;
+    }
+
+    /**
+     * Wraps a submitted task, remembering its lane and measuring its latency.
+     */
+    private class StageTask implements Runnable {
+
+        private final Lane lane;
+        private final Runnable task;
+        private final long submittedAt;
+
+        private StageTask(Lane lane, Runnable task) {
+
+            this.lane = lane;
+            this.task = task;
+            submittedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                task.run();
+            } finally {
+                processed.increment();
+                totalLatencyNanos.add(System.nanoTime() - submittedAt);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+package aqua.broker;
+
+import aqua.common.msgtypes.ReplicationEvent;
+import messaging.Endpoint;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Streams the primary broker's membership changes to its standby brokers.
+ * <p>
+ * Each standby gets its own consecutive sequence numbers, so it can tell a lost event and ask for a resync, which
+ * sends it the complete ring. A standby has to renew its subscription; standbys which stop doing so are dropped
+ * after {@link #SUBSCRIPTION_TIMEOUT}.
+ * <p>
+ * Events are sent while holding this object's lock, so each standby receives them in the order of their sequence
+ * numbers. This class is thread-safe.
+ */
+class Replicator {
+
+    private static final long SUBSCRIPTION_TIMEOUT = 2L * Broker.LEASE_DURATION;
+    private final Endpoint endpoint;
+    private final Map<InetSocketAddress, Subscription> standbys;
+
+    Replicator(Endpoint endpoint) {
+
+        this.endpoint = endpoint;
+        standbys = new HashMap<>();
+    }
+
+    /**
+     * Subscribes the standby or renews its subscription.
+     *
+     * @param standby the standby's address
+     * @param resync true if the standby needs the complete ring
+     * @param ring the current ring; must not change until this method returns
+     */
+    synchronized void subscribe(InetSocketAddress standby, boolean resync, RingSnapshot<InetSocketAddress> ring) {
+
+        Subscription subscription = standbys.get(standby);
+
+        if (subscription == null) {
+            subscription = new Subscription();
+            standbys.put(standby, subscription);
+            resync = true;
+        }
+
+        subscription.renewedAt = System.currentTimeMillis();
+
+        if (resync) {
+
+            send(standby, subscription, ReplicationEvent.Type.RESET, null, null);
+
+            for (int i = 0; i < ring.size(); i++) {
+                InetSocketAddress client = ring.getClient(i);
+                send(standby, subscription, ReplicationEvent.Type.ADD, ring.getId(client), client);
+            }
+        }
+    }
+
+    /**
+     * @return true if at least one standby is subscribed
+     */
+    synchronized boolean hasStandbys() {
+
+        return !standbys.isEmpty();
+    }
+
+    void added(String id, InetSocketAddress client) {
+
+        publish(ReplicationEvent.Type.ADD, id, client);
+    }
+
+    void removed(InetSocketAddress client) {
+
+        publish(ReplicationEvent.Type.REMOVE, null, client);
+    }
+
+    void renewed(InetSocketAddress client) {
+
+        publish(ReplicationEvent.Type.RENEW, null, client);
+    }
+
+    /**
+     * Shows all standbys the primary is alive and drops the standbys whose subscription has run out.
+     */
+    synchronized void heartbeat() {
+
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Map.Entry<InetSocketAddress, Subscription>> it = standbys.entrySet().iterator(); it.hasNext(); ) {
+
+            Map.Entry<InetSocketAddress, Subscription> standby = it.next();
+
+            if (now - standby.getValue().renewedAt > SUBSCRIPTION_TIMEOUT) {
+                it.remove();
+            } else {
+                endpoint.send(standby.getKey(), new ReplicationEvent(standby.getValue().sequence,
+                        ReplicationEvent.Type.HEARTBEAT, null, null));
+            }
+        }
+    }
+
+    private synchronized void publish(ReplicationEvent.Type type, String id, InetSocketAddress client) {
+
+        for (Map.Entry<InetSocketAddress, Subscription> standby : standbys.entrySet())
+            send(standby.getKey(), standby.getValue(), type, id, client);
+    }
+
+    private void send(InetSocketAddress standby, Subscription subscription, ReplicationEvent.Type type, String id,
+                      InetSocketAddress client) {
+
+        endpoint.send(standby, new ReplicationEvent(++subscription.sequence, type, id, client));
+    }
+
+    private static class Subscription {
+
+        private long sequence;
+        private long renewedAt;
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package aqua.broker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of the ring of registered clients.
+ * <p>
+ * Membership changes build a new snapshot and publish it, so readers never lock and always see a consistent ring.
+ * Instances are safely shared between threads.
+ */
+public final class RingSnapshot<E> {
+
+    private static final RingSnapshot<?> EMPTY = new RingSnapshot<>(new Object[0], new String[0]);
+    private final Object[] addresses;
+    private final String[] ids;
+    private final Map<E, Integer> positions;
+
+    /**
+     * @param addresses the clients' addresses in ring order, from left to right
+     * @param ids the clients' ids in the same order
+     */
+    @SuppressWarnings("unchecked")
+    RingSnapshot(Object[] addresses, String[] ids) {
+
+        this.addresses = addresses;
+        this.ids = ids;
+        positions = new HashMap<>(addresses.length * 4 / 3 + 1);
+
+        for (int i = 0; i < addresses.length; i++)
+            positions.put((E) addresses[i], i);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> RingSnapshot<E> empty() {
+
+        return (RingSnapshot<E>) EMPTY;
+    }
+
+    public int size() {
+
+        return addresses.length;
+    }
+
+    public boolean contains(E e) {
+
+        return positions.containsKey(e);
+    }
+
+    /**
+     * @param e address of a registered client
+     * @return the id of the client, or {@code null} if the client isn't registered
+     */
+    public String getId(E e) {
+
+        Integer position = positions.get(e);
+        return position == null ? null : ids[position];
+    }
+
+    /**
+     * @param position a position in the ring, starting with 0 for the first client
+     * @return the client at the given position
+     */
+    public E getClient(int position) {
+
+        return clientAt(position);
+    }
+
+    /**
+     * @return the first client of the ring, or {@code null} if the ring is empty
+     */
+    public E getFirst() {
+
+        return addresses.length == 0 ? null : clientAt(0);
+    }
+
+    /**
+     * @return the last client of the ring, or {@code null} if the ring is empty
+     */
+    public E getLast() {
+
+        return addresses.length == 0 ? null : clientAt(addresses.length - 1);
+    }
+
+    /**
+     * @return the left neighbor of the client, or {@code null} if the client isn't registered
+     */
+    public E getLeftNeighborOf(E e) {
+
+        Integer position = positions.get(e);
+        return position == null ? null : clientAt((position + addresses.length - 1) % addresses.length);
+    }
+
+    /**
+     * @return the right neighbor of the client, or {@code null} if the client isn't registered
+     */
+    public E getRightNeighborOf(E e) {
+
+        Integer position = positions.get(e);
+        return position == null ? null : clientAt((position + 1) % addresses.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E clientAt(int position) {
+
+        return (E) addresses[position];
+    }
+
+}
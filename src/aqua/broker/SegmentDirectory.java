@@ -0,0 +1,162 @@
+package aqua.broker;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A broker's view of a cluster of brokers, each of which owns a contiguous segment of the ring.
+ * <p>
+ * The ring is made up of the segments in the order of the brokers' indices, so the last client of one segment is
+ * the left neighbor of the first client of the next non-empty segment. Each broker knows its own segment
+ * completely, but only the first and the last client of the other segments, which the brokers announce to each
+ * other. A client belongs to the segment chosen by the hash of its address.
+ * <p>
+ * This class is thread-safe and doesn't lock.
+ */
+class SegmentDirectory {
+
+    private final int shard;
+    private final List<InetSocketAddress> brokers;
+    private final AtomicReferenceArray<Boundary> boundaries;
+
+    /**
+     * @param shard the index of this broker
+     * @param brokers the addresses of all brokers of the cluster, ordered by index
+     */
+    SegmentDirectory(int shard, List<InetSocketAddress> brokers) {
+
+        this.shard = shard;
+        this.brokers = List.copyOf(brokers);
+        boundaries = new AtomicReferenceArray<>(brokers.size());
+    }
+
+    int getShard() {
+
+        return shard;
+    }
+
+    List<InetSocketAddress> getBrokers() {
+
+        return brokers;
+    }
+
+    /**
+     * @return the address of the broker owning the given client
+     */
+    InetSocketAddress ownerOf(InetSocketAddress client) {
+
+        return brokers.get(Math.floorMod(client.hashCode(), brokers.size()));
+    }
+
+    boolean owns(InetSocketAddress client) {
+
+        return brokers.size() == 1 || ownerOf(client).equals(brokers.get(shard));
+    }
+
+    /**
+     * Stores the boundaries announced by another broker.
+     *
+     * @return true if they differ from the known ones
+     */
+    boolean update(int shard, InetSocketAddress first, InetSocketAddress last) {
+
+        if (shard == this.shard || shard < 0 || shard >= brokers.size()) {
+            return false;
+        }
+
+        Boundary boundary = first == null ? null : new Boundary(first, last);
+        Boundary previous = boundaries.getAndSet(shard, boundary);
+
+        return previous == null ? boundary != null : !previous.equals(boundary);
+    }
+
+    /**
+     * @return true if all other segments are known to be empty
+     */
+    boolean othersEmpty() {
+
+        for (int i = 0; i < boundaries.length(); i++)
+            if (boundaries.get(i) != null)
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @param client a client of this broker's segment
+     * @param segment this broker's segment
+     * @return the left neighbor of the client in the whole ring, or {@code null} if the client isn't in the segment
+     */
+    InetSocketAddress leftNeighborOf(InetSocketAddress client, RingSnapshot<InetSocketAddress> segment) {
+
+        if (!client.equals(segment.getFirst())) {
+            return segment.getLeftNeighborOf(client);
+        }
+
+        for (int i = 1; i < brokers.size(); i++) {
+
+            Boundary boundary = boundaries.get(Math.floorMod(shard - i, brokers.size()));
+
+            if (boundary != null) {
+                return boundary.last;
+            }
+        }
+
+        return segment.getLast();
+    }
+
+    /**
+     * @param client a client of this broker's segment
+     * @param segment this broker's segment
+     * @return the right neighbor of the client in the whole ring, or {@code null} if the client isn't in the segment
+     */
+    InetSocketAddress rightNeighborOf(InetSocketAddress client, RingSnapshot<InetSocketAddress> segment) {
+
+        if (!client.equals(segment.getLast())) {
+            return segment.getRightNeighborOf(client);
+        }
+
+        for (int i = 1; i < brokers.size(); i++) {
+
+            Boundary boundary = boundaries.get((shard + i) % brokers.size());
+
+            if (boundary != null) {
+                return boundary.first;
+            }
+        }
+
+        return segment.getFirst();
+    }
+
+    private static final class Boundary {
+
+        private final InetSocketAddress first;
+        private final InetSocketAddress last;
+
+        Boundary(InetSocketAddress first, InetSocketAddress last) {
+
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Boundary)) {
+                return false;
+            }
+
+            Boundary other = (Boundary) o;
+            return first.equals(other.first) && last.equals(other.last);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return 31 * first.hashCode() + last.hashCode();
+        }
+
+    }
+
+}
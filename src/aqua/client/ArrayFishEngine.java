@@ -0,0 +1,327 @@
+package aqua.client;
+
+import aqua.common.Direction;
+import aqua.common.FishModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Keeps the fishes in primitive arrays, one per attribute, and moves all of them in a single pass which doesn't
+ * allocate. A {@link FishModel} is only created for a fish leaving the tank and for the view.
+ * <p>
+ * The fishes move exactly like {@link FishModel#update()}, but the vertical wobble is looked up in a precomputed
+ * table, and each engine draws from a random stream of its own instead of the one shared by all fishes.
+ * <p>
+ * Removed fishes are replaced by the last one, so the order of the fishes isn't kept.
+ * <p>
+ * Tanks holding at least {@code parallelThreshold} fishes are ticked in chunks on the common
+ * {@link ForkJoinPool}. Each chunk has a random stream of its own and only moves its fishes; the fishes reaching
+ * the edge are handed to the tank afterwards, in the order of their index, and the removals follow in descending
+ * order. So a parallel tick has the same outcome no matter how the chunks were scheduled.
+ */
+class ArrayFishEngine implements FishEngine {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte STAYS = 0;
+    private static final byte DEPARTS = 1;
+    private static final byte DISAPPEARS = 2;
+    private static final int X_SIZE = FishModel.getXSize();
+    private static final int MAX_Y = TankModel.HEIGHT - FishModel.getYSize();
+    // Math.round(Math.sin(x / 30.0)) for every x a fish can reach, from -X_SIZE to TankModel.WIDTH
+    private static final byte[] WOBBLE = new byte[TankModel.WIDTH + X_SIZE + 1];
+    private final SplittableRandom random;
+    private final int parallelThreshold;
+    private SplittableRandom[] chunkRandoms;
+    // what happened to each fish during a parallel tick, and the number of events per chunk
+    private byte[] events;
+    private int[] chunkEvents;
+    private String[] ids;
+    private int[] xs;
+    private int[] ys;
+    // the direction's vector, -1 or +1
+    private byte[] directions;
+    private boolean[] toggled;
+    // whether the fish was handed off and is swimming out, and the number of such fishes
+    private boolean[] departed;
+    private int departedCount;
+    private int size;
+
+    static {
+
+        for (int i = 0; i < WOBBLE.length; i++)
+            WOBBLE[i] = (byte) Math.round(Math.sin((i - X_SIZE) / 30.0));
+    }
+
+    /**
+     * @param parallelThreshold the number of fishes from which on a tick runs in parallel
+     */
+    ArrayFishEngine(int parallelThreshold) {
+
+        this.parallelThreshold = parallelThreshold;
+        random = new SplittableRandom();
+        chunkRandoms = new SplittableRandom[0];
+        events = new byte[0];
+        chunkEvents = new int[0];
+        ids = new String[INITIAL_CAPACITY];
+        xs = new int[INITIAL_CAPACITY];
+        ys = new int[INITIAL_CAPACITY];
+        directions = new byte[INITIAL_CAPACITY];
+        toggled = new boolean[INITIAL_CAPACITY];
+        departed = new boolean[INITIAL_CAPACITY];
+    }
+
+    @Override
+    public int size() {
+
+        return size;
+    }
+
+    @Override
+    public int residents() {
+
+        return size - departedCount;
+    }
+
+    @Override
+    public void add(FishModel fish) {
+
+        if (size == xs.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            directions = Arrays.copyOf(directions, capacity);
+            toggled = Arrays.copyOf(toggled, capacity);
+            departed = Arrays.copyOf(departed, capacity);
+        }
+
+        ids[size] = fish.getId();
+        xs[size] = fish.getX();
+        ys[size] = fish.getY();
+        directions[size] = (byte) fish.getDirection().getVector();
+        toggled[size] = fish.isToggled();
+        departed[size] = false;
+        size++;
+    }
+
+    @Override
+    public void tick(boolean leave, Function<FishModel, Departure> departures) {
+
+        if (size >= parallelThreshold) {
+            tickInParallel(leave, departures);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+
+            byte event = move(i, leave, random);
+
+            if (event == DEPARTS) {
+                event = depart(i, departures);
+            }
+
+            if (event == DISAPPEARS) {
+                remove(i);
+                i--;
+            }
+        }
+    }
+
+    /**
+     * Asks the tank what happens to the fish at the edge and turns it around if it stays.
+     *
+     * @return {@link #DISAPPEARS} if the fish has to be removed at once
+     */
+    private byte depart(int i, Function<FishModel, Departure> departures) {
+
+        Departure departure = departures.apply(view(i));
+
+        if (departure == Departure.TURN) {
+            directions[i] = (byte) -directions[i];
+        } else if (departure == Departure.SWIM_OUT) {
+            departed[i] = true;
+            departedCount++;
+        }
+
+        return departure == Departure.REMOVE ? DISAPPEARS : STAYS;
+    }
+
+    private void tickInParallel(boolean leave, Function<FishModel, Departure> departures) {
+
+        int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        if (chunkRandoms.length < chunks) {
+
+            int known = chunkRandoms.length;
+            chunkRandoms = Arrays.copyOf(chunkRandoms, chunks);
+
+            for (int c = known; c < chunks; c++)
+                chunkRandoms[c] = random.split();
+
+            chunkEvents = new int[chunks];
+        }
+
+        if (events.length < size) {
+            events = new byte[xs.length];
+        }
+
+        ForkJoinPool.commonPool().invoke(new MoveChunks(0, chunks, leave));
+
+        for (int c = 0; c < chunks; c++) {
+
+            if (chunkEvents[c] == 0) {
+                continue;
+            }
+
+            for (int i = c * CHUNK_SIZE, end = Math.min(size, i + CHUNK_SIZE); i < end; i++)
+                if (events[i] == DEPARTS)
+                    events[i] = depart(i, departures);
+        }
+
+        // descending, so the last fish moved into a gap has already been checked itself
+        for (int c = chunks - 1; c >= 0; c--) {
+
+            if (chunkEvents[c] == 0) {
+                continue;
+            }
+
+            for (int i = Math.min(size, (c + 1) * CHUNK_SIZE) - 1; i >= c * CHUNK_SIZE; i--)
+                if (events[i] == DISAPPEARS)
+                    remove(i);
+        }
+    }
+
+    /**
+     * Moves the fish one step.
+     *
+     * @return whether the fish stays, departs or swam out of the tank
+     */
+    private byte move(int i, boolean leave, SplittableRandom random) {
+
+        int direction = directions[i];
+        int x = xs[i] + direction;
+        int y = ys[i];
+
+        if (random.nextInt(10) >= 8) {
+            y += WOBBLE[Math.max(0, Math.min(x + X_SIZE, WOBBLE.length - 1))];
+            y = y < 0 ? 0 : Math.min(y, MAX_Y);
+        }
+
+        xs[i] = x;
+        ys[i] = y;
+
+        if (direction < 0 ? x == 0 : x == TankModel.WIDTH - X_SIZE) {
+
+            if (leave) {
+                return DEPARTS;
+            }
+
+            directions[i] = (byte) -direction;
+            return STAYS;
+        }
+
+        return (direction < 0 ? x == -X_SIZE : x == TankModel.WIDTH) ? DISAPPEARS : STAYS;
+    }
+
+    @Override
+    public boolean toggle(String fishId) {
+
+        for (int i = 0; i < size; i++) {
+
+            if (ids[i].equals(fishId)) {
+                toggled[i] = !toggled[i];
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return an iterator over views of the fishes at the time of the call
+     */
+    @Override
+    public Iterator<FishModel> iterator() {
+
+        List<FishModel> views = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++)
+            views.add(view(i));
+
+        return views.iterator();
+    }
+
+    private FishModel view(int i) {
+
+        return new FishModel(ids[i], xs[i], ys[i], directions[i] < 0 ? Direction.LEFT : Direction.RIGHT, toggled[i]);
+    }
+
+    /**
+     * Moves the fishes of a range of chunks, splitting the range until it is a single chunk.
+     */
+    @SuppressWarnings("serial")
+    private class MoveChunks extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+        private final boolean leave;
+
+        MoveChunks(int from, int to, boolean leave) {
+
+            this.from = from;
+            this.to = to;
+            this.leave = leave;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MoveChunks(from, middle, leave), new MoveChunks(middle, to, leave));
+                return;
+            }
+
+            SplittableRandom chunkRandom = chunkRandoms[from];
+            int count = 0;
+
+            for (int i = from * CHUNK_SIZE, end = Math.min(size, i + CHUNK_SIZE); i < end; i++) {
+
+                byte event = move(i, leave, chunkRandom);
+                events[i] = event;
+
+                if (event != STAYS) {
+                    count++;
+                }
+            }
+
+            chunkEvents[from] = count;
+        }
+
+    }
+
+    private void remove(int i) {
+
+        if (departed[i]) {
+            departedCount--;
+        }
+
+        size--;
+        ids[i] = ids[size];
+        xs[i] = xs[size];
+        ys[i] = ys[size];
+        directions[i] = directions[size];
+        toggled[i] = toggled[size];
+        departed[i] = departed[size];
+        ids[size] = null;
+    }
+
+}
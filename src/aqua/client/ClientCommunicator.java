@@ -3,19 +3,82 @@ package aqua.client;
 import aqua.common.FishModel;
 import aqua.common.Properties;
 import aqua.common.msgtypes.*;
+import aqua.common.scheduling.Lane;
+import aqua.common.scheduling.LaneQueue;
+import aqua.common.security.KeyMaterialStore;
 import aqua.common.security.SecureEndpoint;
 import messaging.Message;
 
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ClientCommunicator {
 
+    // the lease duration assumed until the broker tells its own
+    private static final long DEFAULT_LEASE_DURATION = 2000;
     private final SecureEndpoint endpoint;
+    private final HandoffReliability handoffs;
+    // the brokers to fail over to, in order
+    private final List<InetSocketAddress> brokers;
+    private final ScheduledExecutorService watchdog;
+    // the broker owning the client's segment of the ring; changed by a RegisterRedirect or a failover
+    private volatile InetSocketAddress broker;
+    private volatile int brokerIndex;
+    private volatile long brokerContact;
+    private volatile long leaseDuration;
+    private volatile boolean registered;
 
     public ClientCommunicator() {
 
-        endpoint = new SecureEndpoint();
+        // every client needs a key pair of its own, so clients sharing a host claim a directory each
+        endpoint = new SecureEndpoint(Properties.KEY_STORE_DIRECTORY == null ? null
+                : KeyMaterialStore.claimDirectory(Paths.get(Properties.KEY_STORE_DIRECTORY), "client"));
+        brokers = new ArrayList<>();
+
+        for (String port : Properties.BROKER_PORTS.split(","))
+            brokers.add(new InetSocketAddress(Properties.HOST, Integer.parseInt(port.trim())));
+
+        // the other clients come and go on ephemeral ports, so only the brokers' keys are worth keeping
+        endpoint.persistPartners(brokers);
+
+        broker = brokers.get(0);
+        leaseDuration = DEFAULT_LEASE_DURATION;
+        handoffs = new HandoffReliability(endpoint, () -> broker);
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "broker-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::watchBroker, Properties.BROKER_WATCH_INTERVAL,
+                Properties.BROKER_WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers anew if the broker has been silent for {@link Properties#FAILOVER_LEASES} leases, with the next
+     * broker of the list if there are several. A standby takes over after a single silent lease, so it is in charge
+     * when the client arrives, and knows the client, which keeps its id and neighbors.
+     */
+    private void watchBroker() {
+
+        if (!registered
+                || System.currentTimeMillis() - brokerContact <= Properties.FAILOVER_LEASES * leaseDuration) {
+            return;
+        }
+
+        if (brokers.size() > 1) {
+            brokerIndex = (brokerIndex + 1) % brokers.size();
+            broker = brokers.get(brokerIndex);
+            System.out.println("Broker is silent, failing over to " + broker + ".");
+        }
+
+        brokerContact = System.currentTimeMillis();
+        endpoint.send(broker, new RegisterRequest());
     }
 
     public ClientForwarder newClientForwarder() {
@@ -30,27 +93,39 @@ public class ClientCommunicator {
 
     public class ClientForwarder {
 
-        private final InetSocketAddress broker;
-
         private ClientForwarder() {
 
-            this.broker = new InetSocketAddress(Properties.HOST, Properties.PORT);
         }
 
         public void register() {
 
+            if (!registered) {
+                brokerContact = System.currentTimeMillis();
+                registered = true;
+            }
+
             endpoint.send(broker, new RegisterRequest());
         }
 
         public void deregister(String id) {
 
+            registered = false;
+            watchdog.shutdown();
+            handoffs.shutdown();
             endpoint.send(broker, new DeregisterRequest(id));
         }
 
-        // todo send fish directly to the neighbor
+        /**
+         * Sends the fish directly to the neighbor it swims to. The broker, which knows the neighbors of all
+         * clients, only forwards the fish if the neighbor isn't known yet. The fish stays in flight until the
+         * receiver acknowledges it.
+         *
+         * @param fish the fish leaving the tank
+         * @param target the neighbor in the fish's direction, or {@code null} if unknown
+         */
         public void handOff(FishModel fish, InetSocketAddress target) {
 
-            endpoint.send(broker, new HandoffRequest(fish));
+            handoffs.send(fish, target);
         }
 
         public void sendToken(InetSocketAddress target) {
@@ -75,41 +150,113 @@ public class ClientCommunicator {
 
     }
 
+    /**
+     * Receives the client's messages and passes them on to a dispatcher thread through a {@link LaneQueue}, so
+     * the token and neighbor updates are handled before any fishes waiting in the queue.
+     */
     public class ClientReceiver extends Thread {
 
+        private static final int LANE_CAPACITY = 1024;
         private final TankModel tankModel;
+        private final LaneQueue<Message> inbox;
+        private final Thread dispatcher;
 
         private ClientReceiver(TankModel tankModel) {
 
             this.tankModel = tankModel;
+            inbox = new LaneQueue<>(LANE_CAPACITY, message -> Lane.of(message.getPayload()));
+            dispatcher = new Thread(this::dispatchMessages, "client-dispatcher");
+            dispatcher.setDaemon(true);
+        }
+
+        /**
+         * @return the number of received messages waiting in the given lane
+         */
+        public int getDepth(Lane lane) {
+
+            return inbox.size(lane);
         }
 
         @Override
         public void run() {
 
-            while (!isInterrupted()) {
-                Message message = endpoint.blockingReceive();
-                Serializable payload = message.getPayload();
+            dispatcher.start();
 
-                if (payload instanceof RegisterResponse) {
-                    tankModel.onRegistration(((RegisterResponse) payload).getId(), ((RegisterResponse) payload).getLeaseDuration());
-                } else if (payload instanceof HandoffRequest) {
-                    tankModel.receiveFish(((HandoffRequest) payload).getFish());
-                } else if (payload instanceof NeighborUpdate) {
-                    tankModel.receiveNeighbor(((NeighborUpdate) payload).getLeftAddress(), ((NeighborUpdate) payload).getRightAddress());
-                } else if (payload instanceof Token) {
-                    tankModel.receiveToken();
-                } else if (payload instanceof SnapshotMarker) {
-                    tankModel.receiveSnapshotMarker(message.getSender(), (SnapshotMarker) payload);
-                } else if (payload instanceof SnapshotToken) {
-                    tankModel.handleSnapshotToken((SnapshotToken) payload);
-                } else if (payload instanceof LocationRequest) {
-                    tankModel.receiveLocationRequest(((LocationRequest) payload).getFish());
+            try {
+
+                while (!isInterrupted()) {
+
+                    Message message = endpoint.blockingReceive();
+
+                    // datagrams which couldn't be decrypted come without payload and sender
+                    if (message != null && message.getPayload() != null && message.getSender() != null) {
+                        inbox.put(message);
+                    }
                 }
+
+            } catch (InterruptedException consumed) {
+                // allow method to terminate
             }
+
+            dispatcher.interrupt();
             System.out.println("Receiver stopped.");
         }
 
+        private void dispatchMessages() {
+
+            try {
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    dispatch(inbox.take());
+                }
+
+            } catch (InterruptedException consumed) {
+                // allow method to terminate
+            }
+        }
+
+        private void dispatch(Message message) {
+
+            Serializable payload = message.getPayload();
+
+            if (message.getSender().equals(broker)) {
+                brokerContact = System.currentTimeMillis();
+            }
+
+            if (payload instanceof RegisterResponse) {
+                String previousId = tankModel.getId();
+                leaseDuration = ((RegisterResponse) payload).getLeaseDuration();
+                tankModel.onRegistration(((RegisterResponse) payload).getId(), ((RegisterResponse) payload).getLeaseDuration());
+
+                // a new id means the lease was lost, so the fishes in flight may not have found a neighbor
+                if (previousId != null && !previousId.equals(((RegisterResponse) payload).getId())) {
+                    handoffs.reconcile();
+                }
+            } else if (payload instanceof RegisterRedirect) {
+                broker = ((RegisterRedirect) payload).getBroker();
+                brokerContact = System.currentTimeMillis();
+                endpoint.send(broker, new RegisterRequest());
+            } else if (payload instanceof HandoffRequest) {
+                if (handoffs.receive((HandoffRequest) payload, message.getSender())) {
+                    tankModel.receiveFish(((HandoffRequest) payload).getFish());
+                }
+            } else if (payload instanceof HandoffAck) {
+                handoffs.acknowledge((HandoffAck) payload);
+            } else if (payload instanceof NeighborUpdate) {
+                tankModel.receiveNeighbor(((NeighborUpdate) payload).getLeftAddress(), ((NeighborUpdate) payload).getRightAddress());
+            } else if (payload instanceof Token) {
+                tankModel.receiveToken();
+            } else if (payload instanceof SlowDown) {
+                tankModel.holdFishes(((SlowDown) payload).getHoldDuration());
+            } else if (payload instanceof SnapshotMarker) {
+                tankModel.receiveSnapshotMarker(message.getSender(), (SnapshotMarker) payload);
+            } else if (payload instanceof SnapshotToken) {
+                tankModel.handleSnapshotToken((SnapshotToken) payload);
+            } else if (payload instanceof LocationRequest) {
+                tankModel.receiveLocationRequest(((LocationRequest) payload).getFish());
+            }
+        }
+
     }
 
 }
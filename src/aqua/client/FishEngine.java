@@ -0,0 +1,60 @@
+package aqua.client;
+
+import aqua.common.FishModel;
+
+import java.util.function.Function;
+
+/**
+ * Stores the fishes of a tank and moves them.
+ * <p>
+ * Implementations don't need to be thread-safe; the tank model only uses its engine while holding its monitor.
+ * The iterator, however, is handed out to the view and must not fail if the engine ticks meanwhile.
+ */
+interface FishEngine extends Iterable<FishModel> {
+
+    /**
+     * @return the number of fishes in the tank, including the ones already handed off but still swimming out
+     */
+    int size();
+
+    /**
+     * @return the number of fishes in the tank which haven't been handed off, i.e. {@link #size()} without the
+     * fishes swimming out. The engine remembers which fishes were handed off, as a fish at the edge may just as well
+     * have turned around.
+     */
+    int residents();
+
+    /**
+     * Puts the fish into the tank at its current position.
+     */
+    void add(FishModel fish);
+
+    /**
+     * Moves every fish one step. A fish reaching the edge is passed to {@code departures} if it may leave the
+     * tank, otherwise it turns around. Fishes which swam out of the tank completely are removed.
+     *
+     * @param leave true if fishes may leave the tank
+     * @param departures decides what happens to a fish reaching the edge
+     */
+    void tick(boolean leave, Function<FishModel, Departure> departures);
+
+    /**
+     * Toggles the highlighting of the fish.
+     *
+     * @return true if the fish is in the tank
+     */
+    boolean toggle(String fishId);
+
+    /**
+     * What happens to a fish reaching the edge of the tank.
+     */
+    enum Departure {
+        // the fish turns around
+        TURN,
+        // the fish was handed off and swims out of the tank
+        SWIM_OUT,
+        // the fish is taken out of the tank at once
+        REMOVE
+    }
+
+}
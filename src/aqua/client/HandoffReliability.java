@@ -0,0 +1,363 @@
+package aqua.client;
+
+import aqua.common.FishModel;
+import aqua.common.msgtypes.HandoffAck;
+import aqua.common.msgtypes.HandoffRequest;
+import aqua.common.security.SecureEndpoint;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure a fish handed off to another tank arrives, and arrives only once.
+ * <p>
+ * Handoffs are numbered per channel, i.e. per receiver: the upper half of a sequence number names the channel, the
+ * lower half counts the channel's handoffs from 1. Every handoff stays in flight until the receiver acknowledges it.
+ * An acknowledgement is cumulative, confirming all handoffs of the channel up to the highest one received in order,
+ * and selectively names a handoff received out of order; so each acknowledgement also repeats the lost ones before
+ * it.
+ * <p>
+ * A single timer retransmits all handoffs which haven't been acknowledged within {@link #RETRANSMISSION_TIMEOUT}.
+ * After {@link #DIRECT_ATTEMPTS} attempts the fish is sent to the broker instead, which always routes it to the
+ * sender's current neighbor, at growing intervals of up to {@link #MAX_RETRANSMISSION_INTERVAL}. The channel is
+ * retired then, so a fish arriving elsewhere doesn't leave a gap in a channel which is still used. A fish is never
+ * given back to the sending tank: missing acknowledgements don't tell whether the receiver got the fish, and giving
+ * it back would duplicate it if only the acknowledgements were lost. Retransmission ends when
+ * <ul>
+ * <li>the fish is acknowledged,</li>
+ * <li>the tank deregisters and leaves with all its fishes, see {@link #shutdown()},</li>
+ * <li>or the fish has been in flight for {@link #MAX_IN_FLIGHT} without any acknowledgement. It is given up then and
+ * counted as lost; this only happens if the tank couldn't reach any neighbor through its broker for that long.</li>
+ * </ul>
+ * A tank which lost its registration and registered anew resends all fishes in flight through the broker at once,
+ * see {@link #reconcile()}, since its neighbors have changed.
+ * <p>
+ * The receiver acknowledges every copy of a handoff, but only passes the first one on to the tank. Per channel it
+ * remembers the highest sequence number received in order and up to {@link #DUPLICATE_WINDOW} sequence numbers
+ * received out of order, and the last {@link #MAX_CHANNELS} channels of each sender. So delivery is at least once
+ * rather than exactly once in two cases: a copy arriving after that many further handoffs of its sender, and a copy
+ * arriving after the receiver restarted.
+ * <p>
+ * This class is thread-safe.
+ */
+class HandoffReliability {
+
+    private static final long RETRANSMISSION_TIMEOUT = 200;
+    private static final int DIRECT_ATTEMPTS = 3;
+    // a lease, after which the broker knows the sender's new neighbor if the old one left
+    private static final long MAX_RETRANSMISSION_INTERVAL = 2000;
+    // fifteen leases, long enough to fail over to another broker and register there
+    private static final long MAX_IN_FLIGHT = 30000;
+    // the number of sequence numbers received out of order which are remembered per channel
+    private static final int DUPLICATE_WINDOW = 1024;
+    // the number of channels remembered per sender
+    private static final int MAX_CHANNELS = 64;
+    private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+    private final SecureEndpoint endpoint;
+    private final Supplier<InetSocketAddress> broker;
+    private final AtomicInteger nextChannel;
+    private final Map<InetSocketAddress, OutboundChannel> outboundChannels;
+    // ordered by sequence number, so a cumulative acknowledgement removes a range
+    private final ConcurrentNavigableMap<Long, PendingHandoff> pendingHandoffs;
+    private final Map<InetSocketAddress, Map<Integer, InboundChannel>> inboundChannels;
+    private final AtomicLong lostFishes;
+    private final ScheduledExecutorService retransmitter;
+
+    /**
+     * @param endpoint the client's endpoint
+     * @param broker supplies the address of the client's current broker
+     */
+    HandoffReliability(SecureEndpoint endpoint, Supplier<InetSocketAddress> broker) {
+
+        this.endpoint = endpoint;
+        this.broker = broker;
+        // a restarted tank starts with other channels, so its handoffs aren't taken for duplicates of old ones
+        nextChannel = new AtomicInteger(new Random().nextInt());
+        outboundChannels = new HashMap<>();
+        pendingHandoffs = new ConcurrentSkipListMap<>();
+        inboundChannels = new HashMap<>();
+        lostFishes = new AtomicLong();
+        retransmitter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handoff-retransmitter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retransmitter.scheduleWithFixedDelay(this::retransmit, RETRANSMISSION_TIMEOUT, RETRANSMISSION_TIMEOUT / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the fish and keeps it in flight until its receipt is acknowledged. Doesn't block.
+     *
+     * @param fish the fish leaving the tank
+     * @param target the neighbor in the fish's direction, or {@code null} if unknown
+     */
+    void send(FishModel fish, InetSocketAddress target) {
+
+        InetSocketAddress address = target != null ? target : broker.get();
+        OutboundChannel channel;
+        long sequence;
+
+        synchronized (outboundChannels) {
+            channel = outboundChannels.computeIfAbsent(address, a -> new OutboundChannel(nextChannel.getAndIncrement()));
+            sequence = channel.nextSequence();
+        }
+
+        HandoffRequest request = new HandoffRequest(fish, sequence, null);
+        PendingHandoff pending = new PendingHandoff(request, address, channel);
+
+        pendingHandoffs.put(sequence, pending);
+        endpoint.send(address, request);
+    }
+
+    /**
+     * Ends the retransmission of the acknowledged handoffs.
+     */
+    void acknowledge(HandoffAck ack) {
+
+        long cumulative = ack.getCumulative();
+
+        // the channel's handoffs from the first one up to the cumulative sequence number
+        pendingHandoffs.subMap(cumulative & ~SEQUENCE_MASK, true, cumulative, true).clear();
+
+        for (long sequence : ack.getSequences())
+            pendingHandoffs.remove(sequence);
+    }
+
+    /**
+     * Acknowledges the handoff to its sender and tells whether it is the first copy received.
+     *
+     * @param request the received handoff
+     * @param sender the sender of the message, which is the broker if the handoff was relayed
+     * @return true if the fish has to be added to the tank, false if it is a duplicate
+     */
+    boolean receive(HandoffRequest request, InetSocketAddress sender) {
+
+        // handoffs of tanks not using acknowledgements can't be told apart
+        if (request.getSequence() == 0) {
+            return true;
+        }
+
+        InetSocketAddress origin = request.getOrigin() != null ? request.getOrigin() : sender;
+        long sequence = request.getSequence();
+        boolean first;
+        HandoffAck ack;
+
+        synchronized (inboundChannels) {
+
+            InboundChannel channel = inboundChannels.computeIfAbsent(origin, address -> new LinkedHashMap<>(16, 0.75f,
+                    true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, InboundChannel> eldest) {
+
+                    return size() > MAX_CHANNELS;
+                }
+            }).computeIfAbsent((int) (sequence >>> 32), id -> new InboundChannel());
+
+            first = channel.receive(sequence & SEQUENCE_MASK);
+            ack = channel.acknowledge(sequence);
+        }
+
+        endpoint.send(origin, ack);
+        return first;
+    }
+
+    /**
+     * Resends all fishes in flight through the broker at once, with the retransmission interval starting over.
+     * Called after the tank lost its registration and registered anew: its neighbors have changed, and the broker,
+     * which couldn't route the fishes meanwhile, can again. A receiver which already got a fish recognizes the copy,
+     * as the tank's address and the fish's sequence number stay the same.
+     */
+    void reconcile() {
+
+        retransmitter.execute(() -> {
+
+            long now = System.currentTimeMillis();
+
+            for (PendingHandoff pending : pendingHandoffs.values()) {
+
+                retire(pending);
+                pending.attempts = Math.max(pending.attempts, DIRECT_ATTEMPTS);
+                pending.target = broker.get();
+                pending.interval = RETRANSMISSION_TIMEOUT;
+                pending.sentAt = now;
+                endpoint.send(pending.target, pending.request);
+            }
+        });
+    }
+
+    /**
+     * @return the number of fishes given up because no acknowledgement arrived for {@link #MAX_IN_FLIGHT}
+     */
+    long getLostFishes() {
+
+        return lostFishes.get();
+    }
+
+    /**
+     * Ends all retransmissions, as the tank leaves the ring along with the fishes still in flight.
+     */
+    void shutdown() {
+
+        retransmitter.shutdown();
+        pendingHandoffs.clear();
+    }
+
+    private void retransmit() {
+
+        long now = System.currentTimeMillis();
+
+        for (Iterator<PendingHandoff> it = pendingHandoffs.values().iterator(); it.hasNext(); ) {
+
+            PendingHandoff pending = it.next();
+
+            if (now - pending.handedOffAt >= MAX_IN_FLIGHT) {
+
+                it.remove();
+                lostFishes.incrementAndGet();
+                System.out.println("Fish " + pending.request.getFish().getId() + " wasn't acknowledged within "
+                        + MAX_IN_FLIGHT + " ms and is given up.");
+                continue;
+            }
+
+            if (now - pending.sentAt < pending.interval) {
+                continue;
+            }
+
+            // the cached neighbor may be stale, so let the broker route the fish
+            if (++pending.attempts > DIRECT_ATTEMPTS) {
+                retire(pending);
+                pending.target = broker.get();
+                pending.interval = Math.min(pending.interval * 2, MAX_RETRANSMISSION_INTERVAL);
+            }
+
+            pending.sentAt = now;
+            endpoint.send(pending.target, pending.request);
+        }
+    }
+
+    /**
+     * Starts a new channel for the next fish to the handoff's original receiver, as the handoff may now arrive
+     * elsewhere and leave a gap in its channel.
+     */
+    private void retire(PendingHandoff pending) {
+
+        synchronized (outboundChannels) {
+            outboundChannels.remove(pending.receiver, pending.channel);
+        }
+    }
+
+    /**
+     * The handoffs to one receiver. Guarded by the map of channels.
+     */
+    private static class OutboundChannel {
+
+        private final long base;
+        private long next;
+
+        OutboundChannel(int id) {
+
+            base = (long) id << 32;
+            next = 1;
+        }
+
+        long nextSequence() {
+
+            return base | (next++ & SEQUENCE_MASK);
+        }
+
+    }
+
+    /**
+     * The handoffs received from one sender's channel. Guarded by the map of channels.
+     */
+    private static class InboundChannel {
+
+        // the highest number up to which all handoffs were received, and the ones received beyond it
+        private long cumulative;
+        private final TreeSet<Long> beyond = new TreeSet<>();
+
+        /**
+         * @param number the handoff's number within the channel
+         * @return true if the handoff wasn't received before
+         */
+        boolean receive(long number) {
+
+            if (number <= cumulative || beyond.contains(number)) {
+                return false;
+            }
+
+            if (number == cumulative + 1) {
+
+                cumulative = number;
+
+                while (beyond.remove(cumulative + 1))
+                    cumulative++;
+
+            } else {
+
+                beyond.add(number);
+
+                if (beyond.size() > DUPLICATE_WINDOW) {
+                    beyond.pollFirst();
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @param sequence the sequence number of the handoff just received
+         * @return the acknowledgement of the channel's state, naming the handoff if it is beyond the cumulative part
+         */
+        HandoffAck acknowledge(long sequence) {
+
+            long base = sequence & ~SEQUENCE_MASK;
+
+            return (sequence & SEQUENCE_MASK) > cumulative ? new HandoffAck(base | cumulative, sequence)
+                    : new HandoffAck(base | cumulative);
+        }
+
+    }
+
+    private static class PendingHandoff {
+
+        private final HandoffRequest request;
+        // the receiver the fish was handed off to and the channel it was numbered in
+        private final InetSocketAddress receiver;
+        private final OutboundChannel channel;
+        private final long handedOffAt;
+        private InetSocketAddress target;
+        private long sentAt;
+        private long interval;
+        private int attempts;
+
+        PendingHandoff(HandoffRequest request, InetSocketAddress receiver, OutboundChannel channel) {
+
+            this.request = request;
+            this.receiver = receiver;
+            this.channel = channel;
+            target = receiver;
+            handedOffAt = System.currentTimeMillis();
+            sentAt = handedOffAt;
+            interval = RETRANSMISSION_TIMEOUT;
+            attempts = 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package aqua.client;
+
+import aqua.common.FishModel;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps every fish as a {@link FishModel} object of its own and lets each fish move itself.
+ */
+class ObjectFishEngine implements FishEngine {
+
+    private final Set<FishModel> fishes;
+    // the fishes handed off and swimming out, only used while ticking
+    private final Set<FishModel> departed;
+
+    ObjectFishEngine() {
+
+        fishes = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        departed = new HashSet<>();
+    }
+
+    @Override
+    public int size() {
+
+        return fishes.size();
+    }
+
+    @Override
+    public int residents() {
+
+        return fishes.size() - departed.size();
+    }
+
+    @Override
+    public void add(FishModel fish) {
+
+        fishes.add(fish);
+    }
+
+    @Override
+    public void tick(boolean leave, Function<FishModel, Departure> departures) {
+
+        for (Iterator<FishModel> it = fishes.iterator(); it.hasNext(); ) {
+            FishModel fish = it.next();
+
+            fish.update();
+
+            if (fish.hitsEdge()) {
+
+                Departure departure = leave ? departures.apply(fish) : Departure.TURN;
+
+                if (departure == Departure.TURN) {
+                    fish.reverse();
+                } else if (departure == Departure.SWIM_OUT) {
+                    departed.add(fish);
+                } else if (departure == Departure.REMOVE) {
+                    it.remove();
+                    continue;
+                }
+            }
+
+            if (fish.disappears()) {
+                it.remove();
+                departed.remove(fish);
+            }
+        }
+    }
+
+    @Override
+    public boolean toggle(String fishId) {
+
+        for (FishModel fish : fishes) {
+
+            if (fish.getId().equals(fishId)) {
+                fish.toggle();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return a weakly consistent iterator, which doesn't fail while the engine ticks
+     */
+    @Override
+    public Iterator<FishModel> iterator() {
+
+        return fishes.iterator();
+    }
+
+}
@@ -0,0 +1,99 @@
+package aqua.client;
+
+import aqua.common.Direction;
+import aqua.common.FishModel;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds the tank size from which on the {@link ArrayFishEngine} ticks faster in parallel chunks than in a single
+ * pass, i.e. a sensible value for {@code -Daqua.parallel.threshold}.
+ * <p>
+ * For every size, one engine always ticks sequentially and one always in parallel. Fishes reaching the edge turn
+ * around, so the tanks keep their size. The benchmark reports the average tick of each engine's best round and
+ * the smallest size from which on the parallel tick is faster for all larger sizes.
+ * <p>
+ * Usage: {@code ParallelTickBenchmark [ticks per round] [sizes ...]}
+ */
+public class ParallelTickBenchmark {
+
+    private static final int WARMUP_TICKS = 200;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int[] sizes = {8192, 16384, 32768, 65536, 131072, 262144, 524288};
+
+        if (args.length > 1) {
+
+            sizes = new int[args.length - 1];
+
+            for (int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("processors=" + Runtime.getRuntime().availableProcessors()
+                + " pool parallelism=" + ForkJoinPool.commonPool().getParallelism());
+        System.out.printf("%8s %14s %14s %8s%n", "fishes", "sequential us", "parallel us", "speedup");
+
+        int crossover = -1;
+
+        for (int size : sizes) {
+
+            ArrayFishEngine sequentialEngine = fill(new ArrayFishEngine(Integer.MAX_VALUE), size);
+            ArrayFishEngine parallelEngine = fill(new ArrayFishEngine(0), size);
+            double sequential = Double.MAX_VALUE;
+            double parallel = Double.MAX_VALUE;
+
+            // the engines take turns and the best round counts, so a hiccup doesn't decide the comparison
+            for (int round = 0; round < ROUNDS; round++) {
+                sequential = Math.min(sequential, tickMicros(sequentialEngine, ticks));
+                parallel = Math.min(parallel, tickMicros(parallelEngine, ticks));
+            }
+
+            System.out.printf("%8d %14.1f %14.1f %8.2f%n", size, sequential, parallel, sequential / parallel);
+
+            // a single faster size may be noise, the crossover is where the parallel tick stays ahead
+            if (parallel >= sequential) {
+                crossover = -1;
+            } else if (crossover < 0) {
+                crossover = size;
+            }
+        }
+
+        System.out.println(crossover < 0 ? "The parallel tick doesn't stay ahead."
+                : "The parallel tick is faster from " + crossover + " fishes on.");
+        System.exit(0);
+    }
+
+    private static ArrayFishEngine fill(ArrayFishEngine engine, int size) {
+
+        SplittableRandom random = new SplittableRandom(size);
+
+        for (int i = 0; i < size; i++)
+            engine.add(new FishModel("fish" + i + "@bench", random.nextInt(TankModel.WIDTH - FishModel.getXSize()),
+                    random.nextInt(TankModel.HEIGHT - FishModel.getYSize()),
+                    random.nextBoolean() ? Direction.LEFT : Direction.RIGHT));
+
+        for (int i = 0; i < WARMUP_TICKS; i++)
+            engine.tick(false, fish -> FishEngine.Departure.TURN);
+
+        return engine;
+    }
+
+    /**
+     * @return the average duration of a tick in microseconds
+     */
+    private static double tickMicros(ArrayFishEngine engine, int ticks) {
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ticks; i++)
+            engine.tick(false, fish -> FishEngine.Departure.TURN);
+
+        return (System.nanoTime() - start) / 1000.0 / ticks;
+    }
+
+}
@@ -0,0 +1,197 @@
+package aqua.client;
+
+import aqua.broker.Broker;
+import aqua.common.FishModel;
+import aqua.common.Properties;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks concurrent global snapshots against the known number of fishes while the fishes keep swimming between the
+ * tanks.
+ * <p>
+ * Starts a broker and the given number of tanks in this process, spawns the same number of fishes in every tank and
+ * lets the token circulate, so fishes are handed off all the time. Each round waits until a fish has been handed
+ * off and then lets every tank initiate a snapshot at once, so the snapshots of all initiators overlap while fishes
+ * are on their way. Each snapshot has to count every fish exactly once, whether it is in a tank, parked at an edge or
+ * on its way to the next tank.
+ * <p>
+ * A round only counts if its snapshots recorded at least {@link #MIN_IN_FLIGHT} fish on its way between two tanks,
+ * so every counted round tests the recorded channel state; other rounds are checked just the same but repeated. The
+ * harness fails if a snapshot is wrong or doesn't complete, or if too few rounds had fishes in flight.
+ * <p>
+ * Usage: {@code SnapshotHarness [tanks] [fishes per tank] [rounds]}
+ */
+public class SnapshotHarness {
+
+    private static final long REGISTRATION_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long SNAPSHOT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    // how long a round waits for a fish to be handed off
+    private static final long HANDOFF_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    // the number of fishes the snapshots of a round have to find in flight for the round to count
+    private static final int MIN_IN_FLIGHT = 1;
+    // how many rounds without fishes in flight may be repeated, relative to the requested rounds
+    private static final int MAX_ROUNDS_FACTOR = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int tankCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int fishesPerTank = args.length > 1 ? Integer.parseInt(args[1]) : Properties.FISH_CAPACITY;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Thread broker = new Thread(() -> Broker.main(new String[0]), "broker");
+        broker.setDaemon(true);
+        broker.start();
+
+        TankModel[] tanks = new TankModel[tankCount];
+
+        for (int i = 0; i < tankCount; i++) {
+
+            ClientCommunicator communicator = new ClientCommunicator();
+            tanks[i] = new TankModel(communicator.newClientForwarder());
+            communicator.newClientReceiver(tanks[i]).start();
+
+            Thread tank = new Thread(tanks[i]::run, "tank-" + i);
+            tank.setDaemon(true);
+            tank.start();
+        }
+
+        if (!awaitRing(tanks)) {
+            System.out.println("Not all tanks registered within " + REGISTRATION_TIMEOUT + " ms.");
+            System.exit(1);
+        }
+
+        // spread over the tank, away from the edges
+        for (TankModel tank : tanks)
+            for (int f = 1; f <= fishesPerTank; f++)
+                tank.newFish(f * (TankModel.WIDTH - FishModel.getXSize()) / (fishesPerTank + 1),
+                        f * (TankModel.HEIGHT - FishModel.getYSize()) / (fishesPerTank + 1));
+
+        int fishes = tankCount * fishesPerTank;
+        int counted = 0;
+        int played = 0;
+        int snapshots = 0;
+        int correct = 0;
+        long handoffs = 0;
+        long inFlight = 0;
+
+        while (counted < rounds && played < rounds * MAX_ROUNDS_FACTOR) {
+
+            long handedOffBefore = handedOff(tanks);
+            long recordedBefore = recordedInFlight(tanks);
+
+            if (!awaitHandoff(tanks, handedOffBefore)) {
+                System.out.println("No fish was handed off within " + HANDOFF_TIMEOUT + " ms.");
+                break;
+            }
+
+            // all snapshots start while the fish is on its way and overlap each other
+            for (TankModel tank : tanks)
+                tank.initiateSnapshot();
+
+            long deadline = System.currentTimeMillis() + SNAPSHOT_TIMEOUT;
+
+            for (TankModel initiator : tanks) {
+
+                while (!initiator.isShowDialog() && System.currentTimeMillis() < deadline)
+                    Thread.sleep(1);
+
+                snapshots++;
+
+                if (!initiator.isShowDialog()) {
+                    System.out.println("Round " + played + ": the snapshot of " + initiator.getId()
+                            + " didn't complete.");
+                    continue;
+                }
+
+                initiator.setShowDialog(false);
+
+                if (initiator.getGlobalState() == fishes) {
+                    correct++;
+                } else {
+                    System.out.println("Round " + played + ": the snapshot of " + initiator.getId() + " counted "
+                            + initiator.getGlobalState() + " of " + fishes + " fishes.");
+                }
+            }
+
+            long roundInFlight = recordedInFlight(tanks) - recordedBefore;
+            handoffs += handedOff(tanks) - handedOffBefore;
+            inFlight += roundInFlight;
+            played++;
+
+            if (roundInFlight >= MIN_IN_FLIGHT) {
+                counted++;
+            }
+        }
+
+        System.out.println("tanks=" + tankCount + " fishes=" + fishes + " rounds=" + played + " counted=" + counted
+                + " snapshots=" + snapshots + " correct=" + correct + " handoffs=" + handoffs
+                + " recorded in flight=" + inFlight);
+
+        System.exit(correct == snapshots && counted == rounds ? 0 : 1);
+    }
+
+    /**
+     * @return true once more than the given number of fishes have been handed off
+     */
+    private static boolean awaitHandoff(TankModel[] tanks, long handedOff) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + HANDOFF_TIMEOUT;
+
+        while (handedOff(tanks) <= handedOff) {
+
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+
+            Thread.sleep(1);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true once every tank has an id and the broker's ring holds all of them
+     */
+    private static boolean awaitRing(TankModel[] tanks) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT;
+
+        while (System.currentTimeMillis() < deadline) {
+
+            boolean registered = Broker.getInstance().getAvailableClients().size() == tanks.length;
+
+            for (TankModel tank : tanks)
+                registered &= tank.getId() != null;
+
+            if (registered) {
+                return true;
+            }
+
+            Thread.sleep(10);
+        }
+
+        return false;
+    }
+
+    private static long handedOff(TankModel[] tanks) {
+
+        long handedOff = 0;
+
+        for (TankModel tank : tanks)
+            handedOff += tank.getHandedOffFishes();
+
+        return handedOff;
+    }
+
+    private static long recordedInFlight(TankModel[] tanks) {
+
+        long recorded = 0;
+
+        for (TankModel tank : tanks)
+            recorded += tank.getRecordedInFlightFishes();
+
+        return recorded;
+    }
+
+}
@@ -2,6 +2,7 @@ package aqua.client;
 
 import aqua.common.Direction;
 import aqua.common.FishModel;
+import aqua.common.Properties;
 import aqua.common.msgtypes.SnapshotMarker;
 import aqua.common.msgtypes.SnapshotToken;
 
@@ -14,35 +15,49 @@ public class TankModel extends Observable implements Iterable<FishModel> {
 
     public static final int WIDTH = 600;
     public static final int HEIGHT = 350;
-    private static final int MAX_FISHES = 5;
+    private static final long TICK_PERIOD = TimeUnit.MILLISECONDS.toNanos(10);
+    // an empty tank without the token only has to show whether it got the token
+    private static final long IDLE_TICK_PERIOD = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final int MAX_CATCH_UP_TICKS = 5;
     private static final Random random = new Random();
-    private static final ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
     private final Timer timer;
-    private final Set<FishModel> fishes;
+    private final FishEngine fishes;
+    private final TickScheduler scheduler;
     private final ClientCommunicator.ClientForwarder forwarder;
     private final ConcurrentMap<String, Reference> fishReferences;
+    // fishes waiting at the left and right edge for the token, guarded by the monitor
+    private final Deque<ParkedFish> parkedLeft;
+    private final Deque<ParkedFish> parkedRight;
     private InetSocketAddress leftNeighbor;
     private InetSocketAddress rightNeighbor;
+    private TimerTask leaseRenewal;
     private volatile String id;
     private volatile boolean token;
+    private volatile long holdUntil;
     private volatile int fishCounter;
-    private volatile boolean waitingForIdle;
-    private boolean initiator;
-    private RecordingMode recordingMode;
-    private volatile int localState;
+    // the snapshots this tank takes part in, by the id of their initiator, guarded by the monitor
+    private final Map<String, Recording> recordings;
     private volatile int globalState;
+    private volatile long recordedInFlight;
     private boolean showDialog;
+    private volatile long handedOffFishes;
+    private volatile long unparkedFishes;
+    private volatile long parkNanos;
+    private volatile long maxParkNanos;
+    private volatile long turnedAtFullPark;
 
     public TankModel(ClientCommunicator.ClientForwarder forwarder) {
 
-        fishes = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        fishes = Properties.ARRAY_FISH_ENGINE ? new ArrayFishEngine(Properties.PARALLEL_TICK_THRESHOLD) : new ObjectFishEngine();
         fishReferences = new ConcurrentHashMap<>();
+        parkedLeft = new ArrayDeque<>();
+        parkedRight = new ArrayDeque<>();
         this.forwarder = forwarder;
         timer = new Timer();
+        scheduler = new TickScheduler(TICK_PERIOD, IDLE_TICK_PERIOD, MAX_CATCH_UP_TICKS);
         token = false;
-        recordingMode = RecordingMode.IDLE;
+        recordings = new HashMap<>();
         fishCounter = 0;
-        localState = 0;
         globalState = 0;
     }
 
@@ -76,22 +91,98 @@ public class TankModel extends Observable implements Iterable<FishModel> {
         return fishCounter;
     }
 
+    /**
+     * @return the durations of the tank's ticks so far
+     */
+    public TickHistogram getTickDurations() {
+
+        return scheduler.getTickDurations();
+    }
+
+    /**
+     * @return the number of ticks skipped because the tank fell too far behind its tick rate
+     */
+    public long getSkippedTicks() {
+
+        return scheduler.getSkippedTicks();
+    }
+
+    /**
+     * @return the number of fishes handed off so far, directly or after waiting at the edge
+     */
+    public long getHandedOffFishes() {
+
+        return handedOffFishes;
+    }
+
+    /**
+     * @return the number of fishes the snapshots so far found on their way to this tank
+     */
+    public long getRecordedInFlightFishes() {
+
+        return recordedInFlight;
+    }
+
+    /**
+     * @return the number of fishes currently waiting at the edges for the token
+     */
+    public synchronized int getParkedFishes() {
+
+        return parkedLeft.size() + parkedRight.size();
+    }
+
+    /**
+     * @return the average time a fish waited at the edge before it was handed off, 0 if none waited yet
+     */
+    public long getAverageParkNanos() {
+
+        long unparked = unparkedFishes;
+        return unparked == 0 ? 0 : parkNanos / unparked;
+    }
+
+    /**
+     * @return the longest time a fish waited at the edge before it was handed off
+     */
+    public long getMaxParkNanos() {
+
+        return maxParkNanos;
+    }
+
+    /**
+     * @return the number of fishes which turned around because too many fishes already waited at their edge
+     */
+    public long getTurnedAtFullPark() {
+
+        return turnedAtFullPark;
+    }
+
     /**
      * Assigns the client's ID given by the server and schedules a task to renew the registration.
+     * The registration is renewed after half of the lease, so the renewal reaches the broker before the lease ends.
+     * Until the broker answers, the renewal is repeated every quarter of the lease, so a renewal lost while the
+     * broker restarts doesn't cost the lease.
      *
      * @param id the client's ID
+     * @param leaseDue the lease duration granted by the broker in milliseconds
      */
     synchronized void onRegistration(String id, int leaseDue) {
 
         this.id = id;
-        timer.schedule(new TimerTask() {
+
+        // a registration after a failover must not start a second renewal
+        if (leaseRenewal != null) {
+            leaseRenewal.cancel();
+        }
+
+        leaseRenewal = new TimerTask() {
 
             @Override
             public void run() {
 
                 forwarder.register();
             }
-        }, leaseDue);
+        };
+        timer.schedule(leaseRenewal, leaseDue / 2, leaseDue / 4);
 
     }
 
@@ -103,8 +194,9 @@ public class TankModel extends Observable implements Iterable<FishModel> {
      */
     public synchronized void newFish(int x, int y) {
 
-        if (fishes.size() < MAX_FISHES) {
-            x = Math.min(x, WIDTH - FishModel.getXSize() - 1);
+        if (fishes.size() + parkedLeft.size() + parkedRight.size() < Properties.FISH_CAPACITY) {
+            // a fish spawned right at an edge would swim out without being handed off
+            x = Math.max(1, Math.min(x, WIDTH - FishModel.getXSize() - 1));
             y = Math.min(y, HEIGHT - FishModel.getYSize());
 
             String fishId = "fish" + (++fishCounter) + "@" + getId();
@@ -112,41 +204,49 @@ public class TankModel extends Observable implements Iterable<FishModel> {
 
             fishes.add(fish);
             fishReferences.put(fishId, Reference.HERE);
+            scheduler.wakeUp();
         }
     }
 
     /**
      * Adds the given fish to the tank.
-     * During snapshots receipts get added to the local state.
+     * During snapshots receipts get added to the local state of every snapshot still recording the fish's channel.
      *
      * @param fish the fish to be added
      */
     synchronized void receiveFish(FishModel fish) {
 
-        if (recordingMode != RecordingMode.IDLE) {
+        boolean recording = false;
 
-            if (fish.getDirection() == Direction.LEFT) {
+        for (Recording snapshot : recordings.values()) {
 
-                if (recordingMode == RecordingMode.BOTH || recordingMode == RecordingMode.RIGHT) {
-                    localState++;
-                }
+            if (snapshot.mode == RecordingMode.IDLE) {
+                continue;
+            }
 
-                fishReferences.replace(fish.getId(), Reference.LEFT, Reference.HERE);
+            recording = true;
 
-            } else {
+            // a fish swimming left comes from the right neighbor and vice versa
+            RecordingMode channel = fish.getDirection() == Direction.LEFT ? RecordingMode.RIGHT : RecordingMode.LEFT;
 
-                if (recordingMode == RecordingMode.BOTH || recordingMode == RecordingMode.LEFT) {
-                    localState++;
-                }
+            if (snapshot.mode == RecordingMode.BOTH || snapshot.mode == channel) {
+                snapshot.localState++;
+                recordedInFlight++;
+            }
+        }
 
-                fishReferences.replace(fish.getId(), Reference.HERE, Reference.RIGHT);
+        if (recording) {
 
+            if (fish.getDirection() == Direction.LEFT) {
+                fishReferences.replace(fish.getId(), Reference.LEFT, Reference.HERE);
+            } else {
+                fishReferences.replace(fish.getId(), Reference.HERE, Reference.RIGHT);
             }
-
         }
 
         fish.setToStart();
         fishes.add(fish);
+        scheduler.wakeUp();
     }
 
     /**
@@ -162,6 +262,17 @@ public class TankModel extends Observable implements Iterable<FishModel> {
 
     }
 
+    /**
+     * Keeps all fishes in the tank for the given time, as asked by an overloaded broker. Fishes reaching an edge
+     * meanwhile turn around as if the client didn't hold the token.
+     *
+     * @param holdDuration the time in milliseconds not to hand off any fishes
+     */
+    void holdFishes(int holdDuration) {
+
+        holdUntil = System.currentTimeMillis() + holdDuration;
+    }
+
     /**
      * Activates the possibility of handing off fishes while the token is hold. After a given period of time,
      * the token gets passed on to the left neighbor.
@@ -170,6 +281,12 @@ public class TankModel extends Observable implements Iterable<FishModel> {
 
         final int TOKEN_DURATION = 2000;
         token = true;
+        scheduler.wakeUp();
+
+        if (System.currentTimeMillis() >= holdUntil) {
+            unparkFishes();
+        }
+
         timer.schedule(new TimerTask() {
 
             @Override
@@ -183,25 +300,31 @@ public class TankModel extends Observable implements Iterable<FishModel> {
     }
 
     /**
-     *
+     * Handles a marker of the snapshot started by the marker's sender. The first marker of a snapshot records the
+     * local state and starts recording the channels from both neighbors; a further marker stops recording the
+     * channel it came through. Snapshots of different initiators are recorded independently, so they may overlap.
      */
     synchronized void receiveSnapshotMarker(InetSocketAddress sender, SnapshotMarker snapshotMarker) {
 
-        // if a snapshot hasn't been initiated yet
-        if (recordingMode == RecordingMode.IDLE) {
+        String initiatorId = snapshotMarker.getSenderId();
+        Recording snapshot = recordings.get(initiatorId);
+
+        // if the snapshot hasn't reached this tank yet
+        if (snapshot == null) {
 
-            localState += fishes.size();
+            snapshot = new Recording(fishes.residents() + parkedLeft.size() + parkedRight.size());
+            recordings.put(initiatorId, snapshot);
 
             if (!leftNeighbor.equals(rightNeighbor)) {
 
                 if (sender.equals(leftNeighbor)) {
-                    recordingMode = RecordingMode.RIGHT;
+                    snapshot.mode = RecordingMode.RIGHT;
                 } else {
-                    recordingMode = RecordingMode.LEFT;
+                    snapshot.mode = RecordingMode.LEFT;
                 }
 
             } else {
-                recordingMode = RecordingMode.BOTH;
+                snapshot.mode = RecordingMode.BOTH;
             }
 
             if (leftNeighbor.equals(rightNeighbor)) {
@@ -215,59 +338,87 @@ public class TankModel extends Observable implements Iterable<FishModel> {
 
                 if (sender.equals(leftNeighbor)) {
 
-                    switch (recordingMode) {
-                        case BOTH -> recordingMode = RecordingMode.RIGHT;
-                        case LEFT -> recordingMode = RecordingMode.IDLE;
+                    switch (snapshot.mode) {
+                        case BOTH -> snapshot.mode = RecordingMode.RIGHT;
+                        case LEFT -> snapshot.mode = RecordingMode.IDLE;
                     }
 
                 } else {
 
-                    switch (recordingMode) {
-                        case BOTH -> recordingMode = RecordingMode.LEFT;
-                        case RIGHT -> recordingMode = RecordingMode.IDLE;
+                    switch (snapshot.mode) {
+                        case BOTH -> snapshot.mode = RecordingMode.LEFT;
+                        case RIGHT -> snapshot.mode = RecordingMode.IDLE;
                     }
 
                 }
 
             } else {
-                recordingMode = RecordingMode.IDLE;
+                snapshot.mode = RecordingMode.IDLE;
             }
 
-            if (initiator && recordingMode == RecordingMode.IDLE) {
-                forwarder.sendSnapshotToken(leftNeighbor, new SnapshotToken(this.id, localState));
+            if (snapshot.mode == RecordingMode.IDLE) {
+                onRecordingFinished(initiatorId, snapshot);
             }
         }
 
     }
 
     /**
-     * Handles the token when received by the clientReciever.
+     * Called when the local recording of a snapshot ends. The initiator starts the snapshot token on its way around
+     * the ring; any other tank forwards the token if it arrived while the tank was still recording.
+     */
+    private void onRecordingFinished(String initiatorId, Recording snapshot) {
+
+        if (initiatorId.equals(id)) {
+
+            forwarder.sendSnapshotToken(leftNeighbor, new SnapshotToken(id, snapshot.localState));
+
+        } else if (snapshot.pendingToken != null) {
+
+            forwardSnapshotToken(snapshot.pendingToken, snapshot);
+        }
+    }
+
+    /**
+     * Adds the local state to the token and passes it on. The tank's part in the snapshot ends here.
+     */
+    private void forwardSnapshotToken(SnapshotToken snapshotToken, Recording snapshot) {
+
+        recordings.remove(snapshotToken.getInitiatorId());
+        snapshotToken.addValue(snapshot.localState);
+        forwarder.sendSnapshotToken(leftNeighbor, snapshotToken);
+    }
+
+    /**
+     * Handles the token when received by the clientReciever. The token adds the local state and moves on as soon
+     * as the local recording of its snapshot has finished; it waits in the recording until then. Back at the
+     * initiator, the token holds the global state and ends its round.
      *
      * @param snapshotToken the token gathering local snapshots from each client to create a global snapshot
      */
     synchronized void handleSnapshotToken(SnapshotToken snapshotToken) {
 
-        waitingForIdle = true;
-
-        singleThreadExecutor.execute(() -> {
-
-            while (waitingForIdle) {
-                if (recordingMode == RecordingMode.IDLE) {
+        Recording snapshot = recordings.get(snapshotToken.getInitiatorId());
 
-                    snapshotToken.addValue(localState);
-                    forwarder.sendSnapshotToken(leftNeighbor, snapshotToken);
-                    waitingForIdle = false;
+        if (snapshot == null) {
 
-                }
-            }
-        });
+            // every tank has recorded the snapshot before the token reaches it, so the token is stale
+            return;
+        }
 
-        if (initiator) {
+        if (snapshotToken.getInitiatorId().equals(id)) {
 
-            initiator = false;
+            recordings.remove(id);
             showDialog = true;
             globalState = snapshotToken.getValue();
 
+        } else if (snapshot.mode == RecordingMode.IDLE) {
+
+            forwardSnapshotToken(snapshotToken, snapshot);
+
+        } else {
+
+            snapshot.pendingToken = snapshotToken;
         }
 
     }
@@ -288,75 +439,113 @@ public class TankModel extends Observable implements Iterable<FishModel> {
     /**
      * Updates the position of the fishes and eventually hands them off, when they hit an edge.
      * A fish may only be handed off if the client currently holds the token; otherwise the fish cannot be handed off and
-     * will reverse and swim in the other direction.
+     * will reverse and swim in the other direction. The same happens while the broker asked to hold the fishes.
+     * If {@link Properties#PARK_HANDOFFS} is set, the fish waits at the edge for the token instead, unless too many
+     * fishes already wait there.
      */
     private synchronized void updateFishies() {
 
-        for (Iterator<FishModel> it = iterator(); it.hasNext(); ) {
-            FishModel fish = it.next();
+        boolean canHandOff = hasToken() && System.currentTimeMillis() >= holdUntil;
 
-            fish.update();
+        // fishes still waiting when a hold ends leave with the current token
+        if (canHandOff && !(parkedLeft.isEmpty() && parkedRight.isEmpty())) {
+            unparkFishes();
+        }
 
-            if (fish.hitsEdge()) {
+        fishes.tick(canHandOff || Properties.PARK_HANDOFFS, fish -> canHandOff ? handOff(fish) : park(fish));
 
-                if (hasToken()) {
+    }
 
-                    if (recordingMode != RecordingMode.IDLE) {
-                        localState--;
-                    }
+    /**
+     * Parks a fish at the edge it reached, if there is room.
+     *
+     * @return whether the fish left the tank for the queue or turns around
+     */
+    private FishEngine.Departure park(FishModel fish) {
 
-                    Direction direction = fish.getDirection();
+        Deque<ParkedFish> parked = fish.getDirection() == Direction.LEFT ? parkedLeft : parkedRight;
 
-                    if (direction == Direction.LEFT) {
+        if (parked.size() >= Properties.PARK_CAPACITY) {
+            turnedAtFullPark++;
+            return FishEngine.Departure.TURN;
+        }
 
-                        forwarder.handOff(fish, leftNeighbor);
-                        fishReferences.replace(fish.getId(), Reference.HERE, Reference.LEFT);
+        parked.addLast(new ParkedFish(fish, System.nanoTime()));
+        return FishEngine.Departure.REMOVE;
+    }
 
-                    } else if (direction == Direction.RIGHT) {
+    /**
+     * Hands off all fishes waiting at the edges, in the order they arrived there. Must be called while holding the
+     * monitor.
+     */
+    private void unparkFishes() {
 
-                        forwarder.handOff(fish, rightNeighbor);
-                        fishReferences.replace(fish.getId(), Reference.HERE, Reference.RIGHT);
-                    }
+        long now = System.nanoTime();
 
+        for (Deque<ParkedFish> parked : List.of(parkedLeft, parkedRight)) {
 
-                } else {
+            for (ParkedFish parkedFish = parked.pollFirst(); parkedFish != null; parkedFish = parked.pollFirst()) {
 
-                    fish.reverse();
+                long waited = now - parkedFish.parkedAt;
+                parkNanos += waited;
+                maxParkNanos = Math.max(maxParkNanos, waited);
+                unparkedFishes++;
+                handOff(parkedFish.fish);
+            }
+        }
+    }
 
-                }
+    /**
+     * Hands off a fish which reached the edge of the tank to the neighbor in its direction.
+     *
+     * @param fish the fish leaving the tank
+     * @return {@code SWIM_OUT}, the fish swims out of the tank while it is on its way
+     */
+    private FishEngine.Departure handOff(FishModel fish) {
 
-            }
+        // a fish leaving after the local state was recorded is part of it, and the neighbor doesn't count it, as it
+        // arrives after the marker
+        handedOffFishes++;
 
-            if (fish.disappears()) {
+        Direction direction = fish.getDirection();
 
-                it.remove();
-            }
+        if (direction == Direction.LEFT) {
+
+            forwarder.handOff(fish, leftNeighbor);
+            fishReferences.replace(fish.getId(), Reference.HERE, Reference.LEFT);
+
+        } else if (direction == Direction.RIGHT) {
+
+            forwarder.handOff(fish, rightNeighbor);
+            fishReferences.replace(fish.getId(), Reference.HERE, Reference.RIGHT);
         }
 
+        return FishEngine.Departure.SWIM_OUT;
     }
 
     private synchronized void update() {
 
-        updateFishies();
         setChanged();
         notifyObservers();
 
     }
 
-    protected void run() {
-
-        forwarder.register();
+    /**
+     * @return true if the tank is empty and doesn't hold the token, so nothing moves
+     */
+    private synchronized boolean isIdle() {
 
-        try {
+        return fishes.size() == 0 && !token;
+    }
 
-            while (!Thread.currentThread().isInterrupted()) {
-                update();
-                TimeUnit.MILLISECONDS.sleep(10);
-            }
+    /**
+     * Runs the tank at a fixed rate of 100 ticks per second until the thread is interrupted. An idle tank only
+     * ticks every {@link #IDLE_TICK_PERIOD}.
+     */
+    protected void run() {
 
-        } catch (InterruptedException consumed) {
-            // allow method to terminate
-        }
+        forwarder.register();
+        scheduler.run(this::isIdle, this::updateFishies, this::update);
 
     }
 
@@ -365,7 +554,10 @@ public class TankModel extends Observable implements Iterable<FishModel> {
      */
     public synchronized void finish() {
 
-        singleThreadExecutor.shutdown();
+        if (leaseRenewal != null) {
+            leaseRenewal.cancel();
+        }
+
         forwarder.deregister(id);
     }
 
@@ -374,10 +566,12 @@ public class TankModel extends Observable implements Iterable<FishModel> {
      */
     public synchronized void initiateSnapshot() {
 
-        if (recordingMode == RecordingMode.IDLE) {
-            localState = fishes.size();
-            recordingMode = RecordingMode.BOTH;
-            initiator = true;
+        // a tank only runs one snapshot of its own at a time, other tanks' snapshots may be running
+        if (!recordings.containsKey(id)) {
+
+            Recording snapshot = new Recording(fishes.residents() + parkedLeft.size() + parkedRight.size());
+            snapshot.mode = RecordingMode.BOTH;
+            recordings.put(id, snapshot);
             forwarder.sendSnapshotMarker(leftNeighbor, new SnapshotMarker(this.id));
             forwarder.sendSnapshotMarker(rightNeighbor, new SnapshotMarker(this.id));
         }
@@ -409,9 +603,13 @@ public class TankModel extends Observable implements Iterable<FishModel> {
 
         if (fishReferences.get(fishId) == Reference.HERE) {
 
-            Optional<FishModel> fishOptional = fishes.stream().filter(fishModel -> fishModel.getId().equals(fishId)).findFirst();
-            fishOptional.ifPresent(FishModel::toggle);
+            if (!fishes.toggle(fishId)) {
 
+                for (Deque<ParkedFish> parked : List.of(parkedLeft, parkedRight))
+                    for (ParkedFish parkedFish : parked)
+                        if (parkedFish.fish.getId().equals(fishId))
+                            parkedFish.fish.toggle();
+            }
 
             return true;
         }
@@ -419,6 +617,39 @@ public class TankModel extends Observable implements Iterable<FishModel> {
         return false;
     }
 
+    /**
+     * A fish waiting at an edge for the token.
+     */
+    private static class ParkedFish {
+
+        private final FishModel fish;
+        private final long parkedAt;
+
+        ParkedFish(FishModel fish, long parkedAt) {
+
+            this.fish = fish;
+            this.parkedAt = parkedAt;
+        }
+
+    }
+
+    /**
+     * The part of one snapshot recorded by this tank.
+     */
+    private static class Recording {
+
+        private RecordingMode mode;
+        private int localState;
+        // the snapshot token waiting for the local recording to finish
+        private SnapshotToken pendingToken;
+
+        Recording(int localState) {
+
+            this.localState = localState;
+        }
+
+    }
+
     /**
      * Helper enum containing all possibilities of recording modes during a snapshot.
      */
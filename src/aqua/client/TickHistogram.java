@@ -0,0 +1,111 @@
+package aqua.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts tick durations in buckets of powers of two microseconds: bucket 0 holds ticks shorter than 1 us, bucket
+ * {@code b} ticks of at least 2<sup>b-1</sup> and less than 2<sup>b</sup> us. The last bucket also holds all
+ * longer ticks.
+ * <p>
+ * This class is thread-safe; one thread may record while others read.
+ */
+public class TickHistogram {
+
+    private static final int BUCKETS = 24;
+    private final AtomicLongArray counts;
+
+    public TickHistogram() {
+
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * @param nanos the duration of a tick
+     */
+    void record(long nanos) {
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    public int getBuckets() {
+
+        return BUCKETS;
+    }
+
+    /**
+     * @return the number of ticks in the given bucket
+     */
+    public long getCount(int bucket) {
+
+        return counts.get(bucket);
+    }
+
+    /**
+     * @return the upper limit of the given bucket in microseconds, exclusive
+     */
+    public long getUpperLimitMicros(int bucket) {
+
+        return 1L << bucket;
+    }
+
+    /**
+     * @return the number of recorded ticks
+     */
+    public long getCount() {
+
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+
+        return count;
+    }
+
+    /**
+     * @param percentile a value between 0 and 100
+     * @return the upper limit in microseconds of the bucket holding the given percentile, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+
+        long count = getCount();
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS && count > 0; i++) {
+
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return getUpperLimitMicros(i);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the non-empty buckets, e.g. {@code <16us: 980, <32us: 20}
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            long count = counts.get(i);
+
+            if (count > 0) {
+                builder.append(builder.length() == 0 ? "" : ", ");
+                builder.append(i == BUCKETS - 1 ? ">=" + (getUpperLimitMicros(i - 1)) : "<" + getUpperLimitMicros(i));
+                builder.append("us: ").append(count);
+            }
+        }
+
+        return builder.toString();
+    }
+
+}
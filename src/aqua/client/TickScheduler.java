@@ -0,0 +1,128 @@
+package aqua.client;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs a simulation at a fixed rate in the calling thread.
+ * <p>
+ * Ticks are due at fixed points in time, so the rate doesn't drift with the cost of a tick. If the ticks fall
+ * behind, the missed ones are caught up before the next frame, up to a limit; beyond it, the missed ticks are
+ * skipped and the schedule starts over from the current time. Catching up doesn't render the frames in between.
+ * <p>
+ * While idle, the simulation only ticks at the idle interval. {@link #wakeUp()} ends an idle interval early.
+ */
+class TickScheduler {
+
+    private final long periodNanos;
+    private final long idlePeriodNanos;
+    private final int maxCatchUpTicks;
+    private final TickHistogram tickDurations;
+    private volatile Thread thread;
+    private volatile boolean wakeUpRequested;
+    private volatile long skippedTicks;
+
+    /**
+     * @param periodNanos the time between two ticks
+     * @param idlePeriodNanos the time between two ticks while idle
+     * @param maxCatchUpTicks the number of missed ticks run in a row before the remaining ones are skipped
+     */
+    TickScheduler(long periodNanos, long idlePeriodNanos, int maxCatchUpTicks) {
+
+        this.periodNanos = periodNanos;
+        this.idlePeriodNanos = idlePeriodNanos;
+        this.maxCatchUpTicks = maxCatchUpTicks;
+        tickDurations = new TickHistogram();
+    }
+
+    /**
+     * Ticks until the calling thread is interrupted.
+     *
+     * @param idle tells whether the simulation is idle
+     * @param tick advances the simulation by one tick
+     * @param frame renders the simulation, once per tick or series of catch-up ticks
+     */
+    void run(BooleanSupplier idle, Runnable tick, Runnable frame) {
+
+        thread = Thread.currentThread();
+        long next = System.nanoTime();
+        boolean idling = false;
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            long now = System.nanoTime();
+
+            if (now < next) {
+
+                if (!(idling && wakeUpRequested)) {
+                    LockSupport.parkNanos(this, next - now);
+                    continue;
+                }
+
+                next = now;
+            }
+
+            wakeUpRequested = false;
+            idling = idle.getAsBoolean();
+
+            if (idling) {
+                runTick(tick);
+                frame.run();
+                next = now + idlePeriodNanos;
+                continue;
+            }
+
+            long missed = (now - next) / periodNanos;
+            long ticks = 1 + Math.min(missed, maxCatchUpTicks);
+
+            for (long i = 0; i < ticks; i++)
+                runTick(tick);
+
+            frame.run();
+
+            if (missed > maxCatchUpTicks) {
+                skippedTicks += missed - maxCatchUpTicks;
+                next = now + periodNanos;
+            } else {
+                next += ticks * periodNanos;
+            }
+        }
+    }
+
+    /**
+     * Ends the current idle interval, so the simulation resumes its normal rate at once.
+     */
+    void wakeUp() {
+
+        wakeUpRequested = true;
+        Thread current = thread;
+
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * @return the durations of all ticks run so far
+     */
+    TickHistogram getTickDurations() {
+
+        return tickDurations;
+    }
+
+    /**
+     * @return the number of ticks skipped because the simulation fell too far behind
+     */
+    long getSkippedTicks() {
+
+        return skippedTicks;
+    }
+
+    private void runTick(Runnable tick) {
+
+        long start = System.nanoTime();
+        tick.run();
+        tickDurations.record(System.nanoTime() - start);
+    }
+
+}
@@ -21,10 +21,16 @@ public final class FishModel implements Serializable {
 
     public FishModel(String id, int x, int y, Direction direction) {
 
+        this(id, x, y, direction, false);
+    }
+
+    public FishModel(String id, int x, int y, Direction direction, boolean toggled) {
+
         this.id = id;
         this.x = x;
         this.y = y;
         this.direction = direction;
+        this.toggled = toggled;
     }
 
     public static int getXSize() {
@@ -6,4 +6,55 @@ public class Properties {
     public final static int PORT = 4711;
     public final static String BROKER_NAME = "AquaBroker";
 
+    // directory for persistent key material, set with -Daqua.keystore=<directory>; keys are kept in memory if unset
+    public final static String KEY_STORE_DIRECTORY = System.getProperty("aqua.keystore");
+
+    // payloads to the same receiver are batched within this window, set with -Daqua.batch.window=<microseconds>;
+    // 0 disables batching
+    public final static long BATCH_WINDOW_MICROS = Long.getLong("aqua.batch.window", 1000);
+
+    // the NIO transport is used unless -Daqua.transport=messaging selects the blocking messaging.jar endpoint
+    public final static boolean NIO_TRANSPORT = !"messaging".equals(System.getProperty("aqua.transport"));
+
+    // the broker handles each message in a virtual thread of its own if -Daqua.executor=virtual is set (Java 21+)
+    public final static boolean VIRTUAL_THREADS = "virtual".equals(System.getProperty("aqua.executor"));
+
+    // what the broker does with messages overflowing its dispatch queue, set with -Daqua.overflow=<policy>:
+    // DROP_OLDEST_DATA, SHED_LOWEST_PRIORITY or SLOW_DOWN_HINT
+    public final static String OVERFLOW_POLICY = System.getProperty("aqua.overflow", "SLOW_DOWN_HINT");
+
+    // registrations arriving within this window are spliced into the ring as one batch, set with
+    // -Daqua.join.window=<milliseconds>; 0 splices every registration on its own
+    public final static long JOIN_WINDOW_MILLIS = Long.getLong("aqua.join.window", 20);
+
+    // tanks keep their fishes in primitive arrays if -Daqua.engine=array is set, otherwise one object per fish
+    public final static boolean ARRAY_FISH_ENGINE = "array".equals(System.getProperty("aqua.engine"));
+
+    // the maximum number of fishes a tank spawns, set with -Daqua.fish.capacity=<fishes>
+    public final static int FISH_CAPACITY = Integer.getInteger("aqua.fish.capacity", 5);
+
+    // the array fish engine ticks tanks holding at least this many fishes in parallel chunks, set with
+    // -Daqua.parallel.threshold=<fishes>
+    public final static int PARALLEL_TICK_THRESHOLD = Integer.getInteger("aqua.parallel.threshold", 65536);
+
+    // fishes reaching the edge without the token wait there and leave with the next token if -Daqua.handoff=park
+    // is set, otherwise they turn around
+    public final static boolean PARK_HANDOFFS = "park".equals(System.getProperty("aqua.handoff"));
+
+    // the maximum number of fishes waiting at each edge, set with -Daqua.park.capacity=<fishes>
+    public final static int PARK_CAPACITY = Integer.getInteger("aqua.park.capacity", 64);
+
+    // directory of the broker's membership journal, set with -Daqua.journal=<directory>; nothing is recorded if unset
+    public final static String JOURNAL_DIRECTORY = System.getProperty("aqua.journal");
+
+    // the ports of the brokers on HOST a client fails over to in order, set with -Daqua.brokers=<port>,<port>,...
+    public final static String BROKER_PORTS = System.getProperty("aqua.brokers", String.valueOf(PORT));
+
+    // a client registers anew, with the next broker if there are several, once its broker has been silent for this
+    // many leases
+    public final static int FAILOVER_LEASES = 2;
+
+    // how often a client checks whether its broker has been silent for too long, in milliseconds
+    public final static long BROKER_WATCH_INTERVAL = 500;
+
 }
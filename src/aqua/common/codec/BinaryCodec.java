@@ -0,0 +1,451 @@
+package aqua.common.codec;
+
+import aqua.common.Direction;
+import aqua.common.FishModel;
+import aqua.common.msgtypes.*;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes the message types of the aquarium in a compact binary layout: a one byte type tag followed by the
+ * message's fields in a fixed order. Payloads without a tag are encoded with Java serialization.
+ * <p>
+ * Decoding recognizes both layouts, since a Java serialization stream always starts with its magic number, which
+ * is not a valid tag. Hence endpoints using different codecs can talk to each other.
+ */
+public class BinaryCodec implements PayloadCodec {
+
+    private static final byte REGISTER_REQUEST = 1;
+    private static final byte REGISTER_RESPONSE = 2;
+    private static final byte DEREGISTER_REQUEST = 3;
+    private static final byte HANDOFF_REQUEST = 4;
+    private static final byte NEIGHBOR_UPDATE = 5;
+    private static final byte TOKEN = 6;
+    private static final byte SNAPSHOT_MARKER = 7;
+    private static final byte SNAPSHOT_TOKEN = 8;
+    private static final byte LOCATION_REQUEST = 9;
+    private static final byte NAME_RESOLUTION_REQUEST = 10;
+    private static final byte MESSAGE_BATCH = 11;
+    private static final byte HANDOFF_ACK = 12;
+    private static final byte SLOW_DOWN = 13;
+    private static final byte REGISTER_REDIRECT = 14;
+    private static final byte SEGMENT_UPDATE = 15;
+    private static final byte REPLICA_SUBSCRIBE = 16;
+    private static final byte REPLICATION_EVENT = 17;
+    private static final byte ENCRYPTED_MESSAGE = 18;
+    private static final byte SESSION_KEY_MESSAGE = 19;
+    private static final byte KEY_EXCHANGE_MESSAGE = 20;
+    private static final byte JAVA_SERIALIZATION = (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8);
+
+    private static final byte NO_ADDRESS = 0;
+    private static final byte UNRESOLVED_ADDRESS = -1;
+
+    private final JavaSerializationCodec fallback = new JavaSerializationCodec();
+
+    @Override
+    public void encode(Serializable payload, ByteBuffer buffer) throws IOException {
+
+        if (payload instanceof RegisterRequest) {
+
+            buffer.put(REGISTER_REQUEST);
+
+        } else if (payload instanceof RegisterResponse) {
+
+            RegisterResponse response = (RegisterResponse) payload;
+            buffer.put(REGISTER_RESPONSE);
+            putString(buffer, response.getId());
+            buffer.putInt(response.getLeaseDuration());
+
+        } else if (payload instanceof DeregisterRequest) {
+
+            buffer.put(DEREGISTER_REQUEST);
+            putString(buffer, ((DeregisterRequest) payload).getId());
+
+        } else if (payload instanceof HandoffRequest) {
+
+            HandoffRequest request = (HandoffRequest) payload;
+            buffer.put(HANDOFF_REQUEST);
+            putFish(buffer, request.getFish());
+            buffer.putLong(request.getSequence());
+            putAddress(buffer, request.getOrigin());
+
+        } else if (payload instanceof HandoffAck) {
+
+            HandoffAck ack = (HandoffAck) payload;
+            long[] sequences = ack.getSequences();
+            buffer.put(HANDOFF_ACK);
+            buffer.putLong(ack.getCumulative());
+            buffer.putShort((short) sequences.length);
+
+            for (long sequence : sequences)
+                buffer.putLong(sequence);
+
+        } else if (payload instanceof NeighborUpdate) {
+
+            NeighborUpdate update = (NeighborUpdate) payload;
+            buffer.put(NEIGHBOR_UPDATE);
+            putAddress(buffer, update.getLeftAddress());
+            putAddress(buffer, update.getRightAddress());
+
+        } else if (payload instanceof RegisterRedirect) {
+
+            buffer.put(REGISTER_REDIRECT);
+            putAddress(buffer, ((RegisterRedirect) payload).getBroker());
+
+        } else if (payload instanceof SegmentUpdate) {
+
+            SegmentUpdate update = (SegmentUpdate) payload;
+            buffer.put(SEGMENT_UPDATE);
+            buffer.putInt(update.getShard());
+            putAddress(buffer, update.getFirst());
+            putAddress(buffer, update.getLast());
+
+        } else if (payload instanceof ReplicaSubscribe) {
+
+            buffer.put(REPLICA_SUBSCRIBE);
+            buffer.put((byte) (((ReplicaSubscribe) payload).isResync() ? 1 : 0));
+
+        } else if (payload instanceof ReplicationEvent) {
+
+            ReplicationEvent event = (ReplicationEvent) payload;
+            buffer.put(REPLICATION_EVENT);
+            buffer.putLong(event.getSequence());
+            buffer.put((byte) event.getType().ordinal());
+            putString(buffer, event.getId());
+            putAddress(buffer, event.getAddress());
+
+        } else if (payload instanceof EncryptedMessage) {
+
+            EncryptedMessage message = (EncryptedMessage) payload;
+            buffer.put(ENCRYPTED_MESSAGE);
+            buffer.putInt(message.getEpoch());
+            putBytes(buffer, message.getIv());
+            putBytes(buffer, message.getCiphertext());
+
+        } else if (payload instanceof SessionKeyMessage) {
+
+            SessionKeyMessage message = (SessionKeyMessage) payload;
+            buffer.put(SESSION_KEY_MESSAGE);
+            buffer.putInt(message.getEpoch());
+            putBytes(buffer, message.getWrappedKey());
+
+        } else if (payload instanceof KeyExchangeMessage && ((KeyExchangeMessage) payload).getKey() instanceof PublicKey) {
+
+            KeyExchangeMessage message = (KeyExchangeMessage) payload;
+            buffer.put(KEY_EXCHANGE_MESSAGE);
+            buffer.put((byte) (message.isResponse() ? 1 : 0));
+            putString(buffer, message.getKey().getAlgorithm());
+            putBytes(buffer, message.getKey().getEncoded());
+
+        } else if (payload instanceof Token) {
+
+            buffer.put(TOKEN);
+
+        } else if (payload instanceof SlowDown) {
+
+            buffer.put(SLOW_DOWN);
+            buffer.putInt(((SlowDown) payload).getHoldDuration());
+
+        } else if (payload instanceof SnapshotMarker) {
+
+            buffer.put(SNAPSHOT_MARKER);
+            putString(buffer, ((SnapshotMarker) payload).getSenderId());
+
+        } else if (payload instanceof SnapshotToken) {
+
+            SnapshotToken token = (SnapshotToken) payload;
+            buffer.put(SNAPSHOT_TOKEN);
+            putString(buffer, token.getInitiatorId());
+            buffer.putInt(token.getValue());
+
+        } else if (payload instanceof LocationRequest) {
+
+            buffer.put(LOCATION_REQUEST);
+            putString(buffer, ((LocationRequest) payload).getFish());
+
+        } else if (payload instanceof NameResolutionRequest) {
+
+            NameResolutionRequest request = (NameResolutionRequest) payload;
+            buffer.put(NAME_RESOLUTION_REQUEST);
+            putString(buffer, request.getRequestId());
+            putString(buffer, request.getTankId());
+
+        } else if (payload instanceof MessageBatch) {
+
+            List<Serializable> payloads = ((MessageBatch) payload).getPayloads();
+            buffer.put(MESSAGE_BATCH);
+            buffer.putShort((short) payloads.size());
+
+            // every payload is prefixed by its length, as Java serialized payloads aren't self-delimiting
+            for (Serializable batched : payloads) {
+
+                int lengthPosition = buffer.position();
+                buffer.putInt(0);
+                encode(batched, buffer);
+                buffer.putInt(lengthPosition, buffer.position() - lengthPosition - Integer.BYTES);
+            }
+
+        } else {
+
+            fallback.encode(payload, buffer);
+        }
+    }
+
+    @Override
+    public Serializable decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+
+        if (!buffer.hasRemaining()) {
+            throw new IOException("empty payload");
+        }
+
+        byte tag = buffer.get(buffer.position());
+
+        if (tag == JAVA_SERIALIZATION) {
+            return fallback.decode(buffer);
+        }
+
+        buffer.get();
+
+        try {
+            return decode(tag, buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated payload of type " + tag, e);
+        }
+    }
+
+    /**
+     * Reads the fields of a payload in the binary layout. Every length and constant read is checked against the
+     * buffer, as the bytes may come from anyone.
+     */
+    private Serializable decode(byte tag, ByteBuffer buffer) throws IOException, ClassNotFoundException {
+
+        switch (tag) {
+            case REGISTER_REQUEST:
+                return new RegisterRequest();
+            case REGISTER_RESPONSE:
+                return new RegisterResponse(getString(buffer), buffer.getInt());
+            case DEREGISTER_REQUEST:
+                return new DeregisterRequest(getString(buffer));
+            case HANDOFF_REQUEST:
+                return new HandoffRequest(getFish(buffer), buffer.getLong(), getAddress(buffer));
+            case HANDOFF_ACK:
+                long cumulative = buffer.getLong();
+                long[] sequences = new long[getLength(buffer, buffer.getShort(), Long.BYTES)];
+
+                for (int i = 0; i < sequences.length; i++)
+                    sequences[i] = buffer.getLong();
+
+                return new HandoffAck(cumulative, sequences);
+            case NEIGHBOR_UPDATE:
+                return new NeighborUpdate(getAddress(buffer), getAddress(buffer));
+            case REGISTER_REDIRECT:
+                return new RegisterRedirect(getAddress(buffer));
+            case SEGMENT_UPDATE:
+                return new SegmentUpdate(buffer.getInt(), getAddress(buffer), getAddress(buffer));
+            case REPLICA_SUBSCRIBE:
+                return new ReplicaSubscribe(buffer.get() != 0);
+            case REPLICATION_EVENT:
+                return new ReplicationEvent(buffer.getLong(), getConstant(buffer, ReplicationEvent.Type.values()),
+                        getString(buffer), getAddress(buffer));
+            case ENCRYPTED_MESSAGE:
+                return new EncryptedMessage(buffer.getInt(), getBytes(buffer), getBytes(buffer));
+            case SESSION_KEY_MESSAGE:
+                return new SessionKeyMessage(buffer.getInt(), getBytes(buffer));
+            case KEY_EXCHANGE_MESSAGE:
+                boolean response = buffer.get() != 0;
+                return new KeyExchangeMessage(getPublicKey(buffer), response);
+            case TOKEN:
+                return new Token();
+            case SLOW_DOWN:
+                return new SlowDown(buffer.getInt());
+            case SNAPSHOT_MARKER:
+                return new SnapshotMarker(getString(buffer));
+            case SNAPSHOT_TOKEN:
+                return new SnapshotToken(getString(buffer), buffer.getInt());
+            case LOCATION_REQUEST:
+                return new LocationRequest(getString(buffer));
+            case NAME_RESOLUTION_REQUEST:
+                return new NameResolutionRequest(getString(buffer), getString(buffer));
+            case MESSAGE_BATCH:
+                return getBatch(buffer);
+            default:
+                throw new IOException("unknown payload type " + tag);
+        }
+    }
+
+    private MessageBatch getBatch(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+
+        // every entry takes at least its length and its tag
+        int count = getLength(buffer, buffer.getShort(), Integer.BYTES + 1);
+        List<Serializable> payloads = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+
+            int length = getLength(buffer, buffer.getInt(), 1);
+            int end = buffer.position() + length;
+
+            // batches aren't nested, and decoding nested ones could exhaust the stack
+            if (length > 0 && buffer.get(buffer.position()) == MESSAGE_BATCH) {
+                throw new IOException("nested message batch");
+            }
+
+            ByteBuffer entry = buffer.duplicate();
+            entry.limit(end);
+            payloads.add(decode(entry));
+            buffer.position(end);
+        }
+
+        return new MessageBatch(payloads);
+    }
+
+    private static void putFish(ByteBuffer buffer, FishModel fish) {
+
+        putString(buffer, fish.getId());
+        buffer.putInt(fish.getX());
+        buffer.putInt(fish.getY());
+        buffer.put((byte) fish.getDirection().ordinal());
+        buffer.put((byte) (fish.isToggled() ? 1 : 0));
+    }
+
+    private static FishModel getFish(ByteBuffer buffer) throws IOException {
+
+        String id = getString(buffer);
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        Direction direction = getConstant(buffer, Direction.values());
+        boolean toggled = buffer.get() != 0;
+
+        return new FishModel(id, x, y, direction, toggled);
+    }
+
+    private static void putString(ByteBuffer buffer, String string) {
+
+        if (string == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+
+        int length = buffer.getShort();
+
+        if (length == -1) {
+            return null;
+        }
+
+        byte[] bytes = new byte[getLength(buffer, length, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+
+        byte[] bytes = new byte[getLength(buffer, buffer.getInt(), 1)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static PublicKey getPublicKey(ByteBuffer buffer) throws IOException {
+
+        String algorithm = getString(buffer);
+
+        try {
+            return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(getBytes(buffer)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("invalid public key", e);
+        }
+    }
+
+    /**
+     * @param length the number of elements read from the buffer
+     * @param elementSize the minimum number of bytes an element takes
+     * @return the length, if the rest of the buffer can hold that many elements
+     * @throws IOException if the length is negative or exceeds the buffer
+     */
+    private static int getLength(ByteBuffer buffer, int length, int elementSize) throws IOException {
+
+        if (length < 0 || length > buffer.remaining() / elementSize) {
+            throw new IOException("invalid length " + length + " with " + buffer.remaining() + " bytes left");
+        }
+
+        return length;
+    }
+
+    /**
+     * @return the constant whose ordinal is the next byte of the buffer
+     * @throws IOException if there is no constant of that ordinal
+     */
+    private static <E extends Enum<E>> E getConstant(ByteBuffer buffer, E[] constants) throws IOException {
+
+        int ordinal = buffer.get();
+
+        if (ordinal < 0 || ordinal >= constants.length) {
+            throw new IOException("invalid ordinal " + ordinal + " of " + constants.getClass().getComponentType()
+                    .getSimpleName());
+        }
+
+        return constants[ordinal];
+    }
+
+    private static void putAddress(ByteBuffer buffer, InetSocketAddress address) {
+
+        if (address == null) {
+            buffer.put(NO_ADDRESS);
+            return;
+        }
+
+        if (address.isUnresolved()) {
+            buffer.put(UNRESOLVED_ADDRESS);
+            putString(buffer, address.getHostString());
+        } else {
+            byte[] bytes = address.getAddress().getAddress();
+            buffer.put((byte) bytes.length);
+            buffer.put(bytes);
+        }
+
+        buffer.putShort((short) address.getPort());
+    }
+
+    private static InetSocketAddress getAddress(ByteBuffer buffer) throws IOException {
+
+        byte length = buffer.get();
+
+        if (length == NO_ADDRESS) {
+            return null;
+        }
+
+        if (length == UNRESOLVED_ADDRESS) {
+            String host = getString(buffer);
+            return InetSocketAddress.createUnresolved(host, Short.toUnsignedInt(buffer.getShort()));
+        }
+
+        byte[] bytes = new byte[getLength(buffer, length, 1)];
+        buffer.get(bytes);
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), Short.toUnsignedInt(buffer.getShort()));
+    }
+
+}
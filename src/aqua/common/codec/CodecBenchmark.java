@@ -0,0 +1,136 @@
+package aqua.common.codec;
+
+import aqua.common.Direction;
+import aqua.common.FishModel;
+import aqua.common.msgtypes.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the {@link BinaryCodec} with Java serialization for the messages sent most often: the bytes per message
+ * and the time to encode and to decode one.
+ * <p>
+ * Both codecs encode into and decode from one reused buffer, like {@code SecureEndpoint} does. Every message is
+ * decoded and encoded again before it is measured; the benchmark fails if that doesn't give the same bytes.
+ * <p>
+ * Usage: {@code CodecBenchmark [iterations]}
+ */
+public class CodecBenchmark {
+
+    private static final int BUFFER_SIZE = 4096;
+    // keeps the results alive, so the JIT can't drop the measured work
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        InetSocketAddress left = new InetSocketAddress("127.0.0.1", 50123);
+        InetSocketAddress right = new InetSocketAddress("127.0.0.1", 50124);
+        FishModel fish = new FishModel("fish3@tank12", 340, 127, Direction.RIGHT);
+
+        List<Serializable> messages = List.of(
+                new HandoffRequest(fish, 42, left),
+                new HandoffAck(42, 43),
+                new NeighborUpdate(left, right),
+                new Token(),
+                new SnapshotMarker("tank12"),
+                new SnapshotToken("tank12", 17),
+                new LocationRequest("fish3@tank12"),
+                new RegisterRequest(),
+                new RegisterResponse("tank12", 2000),
+                // the envelope of an encrypted HandoffRequest, as the transport sends it
+                new EncryptedMessage(7, new byte[12], new byte[56]));
+
+        PayloadCodec java = new JavaSerializationCodec();
+        PayloadCodec binary = new BinaryCodec();
+        boolean failed = false;
+
+        System.out.printf("%-18s %10s %10s %12s %12s %12s %12s%n", "message", "java B", "binary B",
+                "java enc ns", "binary enc", "java dec ns", "binary dec");
+
+        for (Serializable message : messages) {
+
+            int javaBytes = roundTrip(java, message);
+            int binaryBytes = roundTrip(binary, message);
+            failed |= javaBytes < 0 || binaryBytes < 0;
+
+            System.out.printf("%-18s %10d %10d %12.0f %12.0f %12.0f %12.0f%n", message.getClass().getSimpleName(),
+                    javaBytes, binaryBytes,
+                    encodeNanos(java, message, iterations), encodeNanos(binary, message, iterations),
+                    decodeNanos(java, message, iterations), decodeNanos(binary, message, iterations));
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return the encoded size of the message, or -1 if decoding and encoding it again gives different bytes
+     */
+    private static int roundTrip(PayloadCodec codec, Serializable message) throws IOException, ClassNotFoundException {
+
+        byte[] encoded = encode(codec, message);
+        byte[] again = encode(codec, codec.decode(ByteBuffer.wrap(encoded)));
+
+        if (!Arrays.equals(encoded, again)) {
+            System.out.println(message.getClass().getSimpleName() + " doesn't survive a round trip with "
+                    + codec.getClass().getSimpleName());
+            return -1;
+        }
+
+        return encoded.length;
+    }
+
+    private static byte[] encode(PayloadCodec codec, Serializable message) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        codec.encode(message, buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static double encodeNanos(PayloadCodec codec, Serializable message, int iterations) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // the first round warms up the JIT
+        for (int round = 0; ; round++) {
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < iterations; i++) {
+                buffer.clear();
+                codec.encode(message, buffer);
+                sink += buffer.position();
+            }
+
+            if (round == 1) {
+                return (System.nanoTime() - start) / (double) iterations;
+            }
+        }
+    }
+
+    private static double decodeNanos(PayloadCodec codec, Serializable message, int iterations)
+            throws IOException, ClassNotFoundException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(encode(codec, message));
+
+        for (int round = 0; ; round++) {
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < iterations; i++) {
+                buffer.rewind();
+                sink += codec.decode(buffer).hashCode();
+            }
+
+            if (round == 1) {
+                return (System.nanoTime() - start) / (double) iterations;
+            }
+        }
+    }
+
+}
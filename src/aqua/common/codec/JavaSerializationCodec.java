@@ -0,0 +1,44 @@
+package aqua.common.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes payloads with Java object serialization. Every payload carries its class descriptors, which makes this
+ * codec slow and verbose, but it handles every {@code Serializable}.
+ */
+public class JavaSerializationCodec implements PayloadCodec {
+
+    @Override
+    public void encode(Serializable payload, ByteBuffer buffer) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(payload);
+        }
+
+        buffer.put(bytes.toByteArray());
+    }
+
+    @Override
+    public Serializable decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+
+        ByteArrayInputStream bytes;
+
+        if (buffer.hasArray()) {
+            bytes = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] content = new byte[buffer.remaining()];
+            buffer.duplicate().get(content);
+            bytes = new ByteArrayInputStream(content);
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(bytes)) {
+            return (Serializable) in.readObject();
+        } finally {
+            buffer.position(buffer.limit());
+        }
+    }
+
+}
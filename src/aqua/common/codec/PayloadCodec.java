@@ -0,0 +1,32 @@
+package aqua.common.codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns message payloads into bytes and back.
+ */
+public interface PayloadCodec {
+
+    /**
+     * Writes the payload at the buffer's position.
+     *
+     * @param payload the payload to encode
+     * @param buffer the buffer to write to
+     * @throws java.nio.BufferOverflowException if the buffer is too small for the payload
+     * @throws IOException if the payload can't be encoded
+     */
+    void encode(Serializable payload, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Reads a payload from the buffer's position up to its limit.
+     *
+     * @param buffer the buffer to read from
+     * @return the decoded payload
+     * @throws IOException if the buffer doesn't contain a valid payload
+     * @throws ClassNotFoundException if the payload's class is unknown
+     */
+    Serializable decode(ByteBuffer buffer) throws IOException, ClassNotFoundException;
+
+}
@@ -0,0 +1,37 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * A payload encrypted with the session key of the given epoch.
+ */
+@SuppressWarnings("serial")
+public final class EncryptedMessage implements Serializable {
+
+    private final int epoch;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+
+    public EncryptedMessage(int epoch, byte[] iv, byte[] ciphertext) {
+
+        this.epoch = epoch;
+        this.iv = iv;
+        this.ciphertext = ciphertext;
+    }
+
+    public int getEpoch() {
+
+        return epoch;
+    }
+
+    public byte[] getIv() {
+
+        return iv;
+    }
+
+    public byte[] getCiphertext() {
+
+        return ciphertext;
+    }
+
+}
@@ -0,0 +1,36 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Confirms the receipt of handoff requests: all requests of a channel up to a sequence number, and single requests
+ * received out of order.
+ */
+@SuppressWarnings("serial")
+public final class HandoffAck implements Serializable {
+
+    private final long cumulative;
+    private final long[] sequences;
+
+    /**
+     * @param cumulative the channel's highest sequence number up to which all requests were received; it names the
+     * channel even if no request was received in order yet
+     * @param sequences the sequence numbers of further requests received out of order
+     */
+    public HandoffAck(long cumulative, long... sequences) {
+
+        this.cumulative = cumulative;
+        this.sequences = sequences;
+    }
+
+    public long getCumulative() {
+
+        return cumulative;
+    }
+
+    public long[] getSequences() {
+
+        return sequences;
+    }
+
+}
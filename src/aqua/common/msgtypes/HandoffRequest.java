@@ -3,15 +3,31 @@ package aqua.common.msgtypes;
 import aqua.common.FishModel;
 
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 
 @SuppressWarnings("serial")
 public final class HandoffRequest implements Serializable {
 
     private final FishModel fish;
+    private final long sequence;
+    private final InetSocketAddress origin;
 
     public HandoffRequest(FishModel fish) {
 
+        this(fish, 0, null);
+    }
+
+    /**
+     * @param fish the fish to be handed off
+     * @param sequence the sender's sequence number of this handoff, to be acknowledged by the receiver;
+     * 0 if no acknowledgement is expected
+     * @param origin the tank which sent the fish, if the request is relayed by the broker; {@code null} otherwise
+     */
+    public HandoffRequest(FishModel fish, long sequence, InetSocketAddress origin) {
+
         this.fish = fish;
+        this.sequence = sequence;
+        this.origin = origin;
     }
 
     public FishModel getFish() {
@@ -19,4 +35,14 @@ public final class HandoffRequest implements Serializable {
         return fish;
     }
 
+    public long getSequence() {
+
+        return sequence;
+    }
+
+    public InetSocketAddress getOrigin() {
+
+        return origin;
+    }
+
 }
@@ -6,9 +6,15 @@ import java.security.Key;
 public class KeyExchangeMessage implements Serializable {
 
     private Key key;
+    private final boolean response;
 
     public KeyExchangeMessage(Key key) {
+        this(key, false);
+    }
+
+    public KeyExchangeMessage(Key key, boolean response) {
         this.key = key;
+        this.response = response;
     }
 
     public Key getKey() {
@@ -18,4 +24,11 @@ public class KeyExchangeMessage implements Serializable {
     public void setKey(Key key) {
         this.key = key;
     }
+
+    /**
+     * @return true if this message answers a key exchange; false if the sender asks for a key exchange
+     */
+    public boolean isResponse() {
+        return response;
+    }
 }
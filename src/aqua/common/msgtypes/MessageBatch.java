@@ -0,0 +1,24 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Several payloads for the same receiver, sent and encrypted together as one datagram.
+ */
+@SuppressWarnings("serial")
+public final class MessageBatch implements Serializable {
+
+    private final List<Serializable> payloads;
+
+    public MessageBatch(List<Serializable> payloads) {
+
+        this.payloads = payloads;
+    }
+
+    public List<Serializable> getPayloads() {
+
+        return payloads;
+    }
+
+}
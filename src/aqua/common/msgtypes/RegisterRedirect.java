@@ -0,0 +1,24 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Tells a client that another broker of the cluster owns its part of the ring and has to be registered with.
+ */
+@SuppressWarnings("serial")
+public final class RegisterRedirect implements Serializable {
+
+    private final InetSocketAddress broker;
+
+    public RegisterRedirect(InetSocketAddress broker) {
+
+        this.broker = broker;
+    }
+
+    public InetSocketAddress getBroker() {
+
+        return broker;
+    }
+
+}
@@ -0,0 +1,27 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a standby broker to the primary, asking for the stream of membership changes. The subscription has to be
+ * renewed regularly.
+ */
+@SuppressWarnings("serial")
+public final class ReplicaSubscribe implements Serializable {
+
+    private final boolean resync;
+
+    /**
+     * @param resync true if the standby needs the complete ring first, because it just started or missed changes
+     */
+    public ReplicaSubscribe(boolean resync) {
+
+        this.resync = resync;
+    }
+
+    public boolean isResync() {
+
+        return resync;
+    }
+
+}
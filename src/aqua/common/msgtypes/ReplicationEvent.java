@@ -0,0 +1,67 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * A membership change streamed from the primary broker to a standby. Events are numbered consecutively per
+ * standby, so the standby notices a lost event and asks for a resync.
+ */
+@SuppressWarnings("serial")
+public final class ReplicationEvent implements Serializable {
+
+    public enum Type {
+        /**
+         * The standby drops its ring; the primary's ring follows as a sequence of {@code ADD} events.
+         */
+        RESET,
+        ADD,
+        REMOVE,
+        RENEW,
+        /**
+         * Sent regularly to show the primary is alive. Carries the sequence number of the last event instead of a
+         * new one.
+         */
+        HEARTBEAT
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final String id;
+    private final InetSocketAddress address;
+
+    public ReplicationEvent(long sequence, Type type, String id, InetSocketAddress address) {
+
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+        this.address = address;
+    }
+
+    public long getSequence() {
+
+        return sequence;
+    }
+
+    public Type getType() {
+
+        return type;
+    }
+
+    /**
+     * @return the id of the added client, {@code null} for other events
+     */
+    public String getId() {
+
+        return id;
+    }
+
+    /**
+     * @return the client concerned, {@code null} for {@code RESET} and {@code HEARTBEAT}
+     */
+    public InetSocketAddress getAddress() {
+
+        return address;
+    }
+
+}
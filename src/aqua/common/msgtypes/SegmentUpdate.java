@@ -0,0 +1,39 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Sent between the brokers of a cluster, announcing the first and the last client of a broker's segment of the
+ * ring. Both are {@code null} if the segment is empty.
+ */
+@SuppressWarnings("serial")
+public final class SegmentUpdate implements Serializable {
+
+    private final int shard;
+    private final InetSocketAddress first;
+    private final InetSocketAddress last;
+
+    public SegmentUpdate(int shard, InetSocketAddress first, InetSocketAddress last) {
+
+        this.shard = shard;
+        this.first = first;
+        this.last = last;
+    }
+
+    public int getShard() {
+
+        return shard;
+    }
+
+    public InetSocketAddress getFirst() {
+
+        return first;
+    }
+
+    public InetSocketAddress getLast() {
+
+        return last;
+    }
+
+}
@@ -0,0 +1,31 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Carries a symmetric session key, wrapped with the receiver's public key. The sender uses this key for all
+ * messages of the given epoch it sends to the receiver.
+ */
+@SuppressWarnings("serial")
+public final class SessionKeyMessage implements Serializable {
+
+    private final int epoch;
+    private final byte[] wrappedKey;
+
+    public SessionKeyMessage(int epoch, byte[] wrappedKey) {
+
+        this.epoch = epoch;
+        this.wrappedKey = wrappedKey;
+    }
+
+    public int getEpoch() {
+
+        return epoch;
+    }
+
+    public byte[] getWrappedKey() {
+
+        return wrappedKey;
+    }
+
+}
@@ -0,0 +1,26 @@
+package aqua.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Sent by an overloaded broker, asking the client not to hand off any fishes for the given time.
+ */
+@SuppressWarnings("serial")
+public final class SlowDown implements Serializable {
+
+    private final int holdDuration;
+
+    public SlowDown(int holdDuration) {
+
+        this.holdDuration = holdDuration;
+    }
+
+    /**
+     * @return the time in milliseconds the client should hold its fishes
+     */
+    public int getHoldDuration() {
+
+        return holdDuration;
+    }
+
+}
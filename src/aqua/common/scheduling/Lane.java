@@ -0,0 +1,49 @@
+package aqua.common.scheduling;
+
+import aqua.common.msgtypes.HandoffRequest;
+import aqua.common.msgtypes.LocationRequest;
+import aqua.common.msgtypes.NameResolutionRequest;
+import aqua.common.msgtypes.SnapshotMarker;
+import aqua.common.msgtypes.SnapshotToken;
+
+import java.io.Serializable;
+
+/**
+ * The priority classes of messages, from highest to lowest priority.
+ */
+public enum Lane {
+
+    /**
+     * Messages keeping the ring intact and the token moving, e.g. registrations, neighbor updates and the token.
+     */
+    CONTROL,
+    /**
+     * Fishes swimming between tanks.
+     */
+    DATA,
+    /**
+     * Snapshot results and searches, which nobody is waiting for urgently.
+     */
+    BACKGROUND;
+
+    /**
+     * Snapshot markers travel in the data lane, because the snapshot algorithm relies on a marker not overtaking
+     * the fishes sent before it.
+     *
+     * @return the lane the given payload is scheduled in
+     */
+    public static Lane of(Serializable payload) {
+
+        if (payload instanceof HandoffRequest || payload instanceof SnapshotMarker) {
+            return DATA;
+        }
+
+        if (payload instanceof SnapshotToken || payload instanceof LocationRequest
+                || payload instanceof NameResolutionRequest) {
+            return BACKGROUND;
+        }
+
+        return CONTROL;
+    }
+
+}
@@ -0,0 +1,413 @@
+package aqua.common.scheduling;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A blocking queue with one bounded FIFO per {@link Lane}. Elements are always taken from the lane of the highest
+ * priority which isn't empty, so control messages never wait behind data.
+ * <p>
+ * Each lane is bounded on its own: a full data lane doesn't keep control messages out. Within a lane the order is
+ * kept. Optionally, the lanes additionally share a total budget, so lower lanes can be shed to make room for higher
+ * ones, see {@link #shed(Lane)}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <E> the type of the queued elements
+ */
+public class LaneQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private static final Lane[] LANES = Lane.values();
+    private final Function<? super E, Lane> classifier;
+    private final int capacity;
+    private final int totalCapacity;
+    private final List<ArrayDeque<E>> lanes;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final List<Condition> notFull;
+    private int count;
+
+    /**
+     * @param capacity the maximum number of elements per lane
+     * @param classifier decides the lane of an element
+     */
+    public LaneQueue(int capacity, Function<? super E, Lane> classifier) {
+
+        this(capacity, capacity * LANES.length, classifier);
+    }
+
+    /**
+     * @param capacity the maximum number of elements per lane
+     * @param totalCapacity the maximum number of elements in all lanes together
+     * @param classifier decides the lane of an element
+     */
+    public LaneQueue(int capacity, int totalCapacity, Function<? super E, Lane> classifier) {
+
+        this.capacity = capacity;
+        this.totalCapacity = totalCapacity;
+        this.classifier = classifier;
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        lanes = new ArrayList<>(LANES.length);
+        notFull = new ArrayList<>(LANES.length);
+
+        for (int i = 0; i < LANES.length; i++) {
+            lanes.add(new ArrayDeque<>());
+            notFull.add(lock.newCondition());
+        }
+    }
+
+    /**
+     * @return the number of elements waiting in the given lane
+     */
+    public int size(Lane lane) {
+
+        lock.lock();
+
+        try {
+            return lanes.get(lane.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+
+        lock.lock();
+
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+
+        Lane lane = classifier.apply(e);
+        lock.lock();
+
+        try {
+
+            if (isFull(lane)) {
+                return false;
+            }
+
+            enqueue(lane, e);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+
+        Lane lane = classifier.apply(e);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+
+        try {
+
+            while (isFull(lane)) {
+
+                if (nanos <= 0) {
+                    return false;
+                }
+
+                nanos = notFull.get(lane.ordinal()).awaitNanos(nanos);
+            }
+
+            enqueue(lane, e);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+
+        Lane lane = classifier.apply(e);
+        lock.lockInterruptibly();
+
+        try {
+
+            while (isFull(lane))
+                notFull.get(lane.ordinal()).await();
+
+            enqueue(lane, e);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+
+        lock.lock();
+
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest element of the given lane.
+     *
+     * @return the removed element, or {@code null} if the lane is empty
+     */
+    public E poll(Lane lane) {
+
+        lock.lock();
+
+        try {
+
+            E e = lanes.get(lane.ordinal()).pollFirst();
+
+            if (e != null) {
+                count--;
+                signalNotFull(lane.ordinal());
+            }
+
+            return e;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest element of the lowest lane below the given one which isn't empty, to make room for an
+     * element of the given lane.
+     *
+     * @return the removed element, or {@code null} if all lanes below the given one are empty
+     */
+    public E shed(Lane lane) {
+
+        lock.lock();
+
+        try {
+
+            for (int i = LANES.length - 1; i > lane.ordinal(); i--) {
+
+                E e = lanes.get(i).pollFirst();
+
+                if (e != null) {
+                    count--;
+                    signalNotFull(i);
+                    return e;
+                }
+            }
+
+            return null;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+
+        try {
+
+            while (count == 0) {
+
+                if (nanos <= 0) {
+                    return null;
+                }
+
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+
+            return dequeue();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+
+        lock.lockInterruptibly();
+
+        try {
+
+            while (count == 0)
+                notEmpty.await();
+
+            return dequeue();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+
+        lock.lock();
+
+        try {
+
+            for (ArrayDeque<E> lane : lanes)
+                if (!lane.isEmpty())
+                    return lane.peekFirst();
+
+            return null;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+
+        lock.lock();
+
+        try {
+            return totalCapacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+
+        lock.lock();
+
+        try {
+
+            for (int i = 0; i < LANES.length; i++) {
+
+                if (lanes.get(i).remove(o)) {
+                    count--;
+                    signalNotFull(i);
+                    return true;
+                }
+            }
+
+            return false;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+
+        lock.lock();
+
+        try {
+
+            int drained = 0;
+
+            while (count > 0 && drained < maxElements) {
+                c.add(dequeue());
+                drained++;
+            }
+
+            return drained;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a copy of the queue, in the order the elements would be taken
+     */
+    @Override
+    public Iterator<E> iterator() {
+
+        lock.lock();
+
+        try {
+
+            List<E> elements = new ArrayList<>(count);
+
+            for (ArrayDeque<E> lane : lanes)
+                elements.addAll(lane);
+
+            return elements.iterator();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(Lane lane) {
+
+        return lanes.get(lane.ordinal()).size() >= capacity || count >= totalCapacity;
+    }
+
+    /**
+     * Wakes up a thread waiting to add to the given lane, which just lost an element. If the total budget was
+     * exhausted, a thread waiting for any lane may continue now.
+     */
+    private void signalNotFull(int lane) {
+
+        if (count == totalCapacity - 1) {
+
+            for (Condition condition : notFull)
+                condition.signal();
+
+        } else {
+            notFull.get(lane).signal();
+        }
+    }
+
+    private void enqueue(Lane lane, E e) {
+
+        lanes.get(lane.ordinal()).addLast(e);
+        count++;
+        notEmpty.signal();
+    }
+
+    private E dequeue() {
+
+        for (int i = 0; i < LANES.length; i++) {
+
+            ArrayDeque<E> lane = lanes.get(i);
+
+            if (!lane.isEmpty()) {
+                count--;
+                signalNotFull(i);
+                return lane.pollFirst();
+            }
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,154 @@
+package aqua.common.security;
+
+import messaging.Message;
+
+import javax.crypto.SecretKey;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The session keys of all partners, used to decrypt their messages.
+ * <p>
+ * A message may be processed before the session key message sent ahead of it has been unwrapped, either because
+ * another thread is still unwrapping it or because it was reordered on the way. Such a message is parked instead of
+ * waiting for the key, and handed back when the key arrives. If the key doesn't arrive within the park timeout, the
+ * parked messages of its epoch are dropped and the partner is reported as having lost its session. For each partner
+ * the two most recent keys are kept, so messages still in flight during a key rotation can be decrypted.
+ * <p>
+ * This class is thread-safe.
+ */
+final class InboundSessions {
+
+    private static final int KEYS_PER_PARTNER = 2;
+    private static final int MAX_PARKED_MESSAGES = 256;
+    private final long parkTimeout;
+    private final Consumer<InetSocketAddress> sessionLost;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentMap<InetSocketAddress, PartnerKeys> partners;
+
+    /**
+     * @param parkTimeout the time in milliseconds a message waits for the key of its epoch
+     * @param sessionLost receives the partners whose key didn't arrive in time
+     */
+    InboundSessions(long parkTimeout, Consumer<InetSocketAddress> sessionLost) {
+
+        this.parkTimeout = parkTimeout;
+        this.sessionLost = sessionLost;
+        partners = new ConcurrentHashMap<>();
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-key-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stores the key the given partner uses for the given epoch.
+     *
+     * @return the messages parked while waiting for the key, in the order they arrived
+     */
+    List<Message> put(InetSocketAddress partner, int epoch, SecretKey key) {
+
+        return partners.computeIfAbsent(partner, address -> new PartnerKeys()).put(epoch, key);
+    }
+
+    /**
+     * Returns the key of the message's epoch. If it isn't known yet, the message is parked until it arrives; once
+     * {@link #MAX_PARKED_MESSAGES} messages of the partner are parked, further ones are dropped.
+     *
+     * @param partner the sender of the message
+     * @param epoch the epoch of the message
+     * @param message the message as it was received
+     * @return the key or {@code null} if the message was parked or dropped
+     */
+    SecretKey getOrPark(InetSocketAddress partner, int epoch, Message message) {
+
+        PartnerKeys keys = partners.computeIfAbsent(partner, address -> new PartnerKeys());
+        SecretKey key;
+
+        synchronized (keys) {
+
+            key = keys.keys.get(epoch);
+
+            if (key != null || keys.parkedCount == MAX_PARKED_MESSAGES) {
+                return key;
+            }
+
+            List<Message> parked = keys.parked.get(epoch);
+
+            if (parked == null) {
+                parked = new ArrayList<>();
+                keys.parked.put(epoch, parked);
+                timer.schedule(() -> expire(partner, epoch), parkTimeout, TimeUnit.MILLISECONDS);
+            }
+
+            parked.add(message);
+            keys.parkedCount++;
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops the messages still waiting for the key of the given epoch.
+     */
+    private void expire(InetSocketAddress partner, int epoch) {
+
+        PartnerKeys keys = partners.get(partner);
+        List<Message> parked;
+
+        synchronized (keys) {
+
+            parked = keys.parked.remove(epoch);
+
+            if (parked != null) {
+                keys.parkedCount -= parked.size();
+            }
+        }
+
+        if (parked != null) {
+            sessionLost.accept(partner);
+        }
+    }
+
+    private static class PartnerKeys {
+
+        private final Map<Integer, SecretKey> keys = new LinkedHashMap<>();
+        private final Map<Integer, List<Message>> parked = new LinkedHashMap<>();
+        private int parkedCount;
+
+        synchronized List<Message> put(int epoch, SecretKey key) {
+
+            // an earlier announcement of the same epoch is replaced
+            keys.remove(epoch);
+            keys.put(epoch, key);
+
+            for (Iterator<Integer> it = keys.keySet().iterator(); keys.size() > KEYS_PER_PARTNER; ) {
+                it.next();
+                it.remove();
+            }
+
+            List<Message> messages = parked.remove(epoch);
+
+            if (messages == null) {
+                return Collections.emptyList();
+            }
+
+            parkedCount -= messages.size();
+            return messages;
+        }
+
+    }
+
+}
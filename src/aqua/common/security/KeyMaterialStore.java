@@ -0,0 +1,273 @@
+package aqua.common.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a node's key pair and the public keys of its long-lived partners on disk, so a restarted node neither has
+ * to generate a new key pair nor repeat the key exchange with partners it already knows.
+ * <p>
+ * The directory contains the node's private key (PKCS #8), its public key (X.509) and a properties file mapping
+ * {@code host:port} to the partner's Base64 encoded public key. A directory belongs to a single node; nodes which
+ * don't have a directory of their own claim one with {@link #claimDirectory(Path, String)}.
+ * <p>
+ * Partner keys are written by a background thread, so storing a key never waits for the disk. Files are written to
+ * a temporary file first and then moved into place, so they are never read half-written.
+ */
+public class KeyMaterialStore {
+
+    private static final String PRIVATE_KEY_FILE = "node.key";
+    private static final String PUBLIC_KEY_FILE = "node.pub";
+    private static final String PARTNERS_FILE = "partners.properties";
+    private static final String LOCK_FILE = "node.lock";
+    // the locks of the directories claimed by this process, held until it exits
+    private static final List<FileLock> CLAIMED_DIRECTORIES = new ArrayList<>();
+    private final Path directory;
+    private final String algorithm;
+    private final Properties partners;
+    private final ExecutorService writer;
+    // guarded by this
+    private boolean writeScheduled;
+
+    public KeyMaterialStore(Path directory, String algorithm) {
+
+        this.directory = directory;
+        this.algorithm = algorithm;
+        partners = new Properties();
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "key-store-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Claims the first directory {@code <prefix>-0}, {@code <prefix>-1}, ... below the parent which no other node,
+     * in this or another process, uses, so nodes sharing a parent directory never share a key pair. A restarted
+     * node gets the key pair of a node which has exited.
+     *
+     * @return the claimed directory, or {@code null} if none can be claimed
+     */
+    public static Path claimDirectory(Path parent, String prefix) {
+
+        synchronized (CLAIMED_DIRECTORIES) {
+
+            for (int i = 0; ; i++) {
+
+                Path directory = parent.resolve(prefix + "-" + i);
+
+                try {
+
+                    Files.createDirectories(directory);
+                    FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE);
+                    FileLock lock;
+
+                    try {
+                        lock = channel.tryLock();
+                    } catch (OverlappingFileLockException e) {
+                        // claimed by another node of this process
+                        lock = null;
+                    }
+
+                    if (lock != null) {
+                        CLAIMED_DIRECTORIES.add(lock);
+                        return directory;
+                    }
+
+                    channel.close();
+
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the stored key pair, or {@code null} if there is none or it can't be read
+     */
+    public KeyPair loadKeyPair() {
+
+        Path privateKeyFile = directory.resolve(PRIVATE_KEY_FILE);
+        Path publicKeyFile = directory.resolve(PUBLIC_KEY_FILE);
+
+        if (!Files.isReadable(privateKeyFile) || !Files.isReadable(publicKeyFile)) {
+            return null;
+        }
+
+        try {
+
+            KeyFactory keyFactory = KeyFactory.getInstance(algorithm);
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(privateKeyFile)));
+            PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(Files.readAllBytes(publicKeyFile)));
+
+            return new KeyPair(publicKey, privateKey);
+
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    public void storeKeyPair(KeyPair keyPair) {
+
+        try {
+
+            Files.createDirectories(directory);
+            write(directory.resolve(PRIVATE_KEY_FILE), keyPair.getPrivate().getEncoded());
+            write(directory.resolve(PUBLIC_KEY_FILE), keyPair.getPublic().getEncoded());
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the public keys of the given partners. Only these partners are kept from now on; the keys of any other
+     * partners are removed from the file.
+     *
+     * @return the public keys of the given partners which are known
+     */
+    public synchronized Map<InetSocketAddress, PublicKey> loadPartners(Collection<InetSocketAddress> retained) {
+
+        Map<InetSocketAddress, PublicKey> knownPartners = new HashMap<>();
+        Path partnersFile = directory.resolve(PARTNERS_FILE);
+
+        if (!Files.isReadable(partnersFile)) {
+            return knownPartners;
+        }
+
+        Set<String> names = new HashSet<>();
+
+        for (InetSocketAddress partner : retained)
+            names.add(nameOf(partner));
+
+        try (InputStream in = Files.newInputStream(partnersFile)) {
+
+            partners.load(in);
+            KeyFactory keyFactory = KeyFactory.getInstance(algorithm);
+
+            if (partners.keySet().retainAll(names)) {
+                scheduleWrite();
+            }
+
+            for (InetSocketAddress partner : retained) {
+
+                String encodedKey = partners.getProperty(nameOf(partner));
+
+                if (encodedKey != null) {
+                    byte[] key = Base64.getDecoder().decode(encodedKey);
+                    knownPartners.put(partner, keyFactory.generatePublic(new X509EncodedKeySpec(key)));
+                }
+            }
+
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        return knownPartners;
+    }
+
+    /**
+     * Remembers the public key of a partner. The file is written in the background; nothing is written if the key
+     * is already known.
+     */
+    public synchronized void storePartner(InetSocketAddress address, PublicKey key) {
+
+        String name = nameOf(address);
+        String encodedKey = Base64.getEncoder().encodeToString(key.getEncoded());
+
+        if (encodedKey.equals(partners.getProperty(name))) {
+            return;
+        }
+
+        partners.setProperty(name, encodedKey);
+        scheduleWrite();
+    }
+
+    /**
+     * Writes the partners file once all changes made until then are in; changes made while a write is pending are
+     * written along with it.
+     */
+    private void scheduleWrite() {
+
+        if (!writeScheduled) {
+            writeScheduled = true;
+            writer.execute(this::writePartners);
+        }
+    }
+
+    private void writePartners() {
+
+        Properties copy = new Properties();
+
+        synchronized (this) {
+            writeScheduled = false;
+            copy.putAll(partners);
+        }
+
+        try {
+
+            Files.createDirectories(directory);
+            Path temporaryFile = Files.createTempFile(directory, PARTNERS_FILE, ".tmp");
+
+            try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+                copy.store(out, "public keys of known partners");
+            }
+
+            Files.move(temporaryFile, directory.resolve(PARTNERS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return {@code ip:port}, or {@code host:port} if the address is unresolved, so a partner has the same name
+     * whether it was configured by host name or learned from a datagram
+     */
+    private static String nameOf(InetSocketAddress address) {
+
+        String host = address.isUnresolved() ? address.getHostString() : address.getAddress().getHostAddress();
+        return host + ":" + address.getPort();
+    }
+
+    private static void write(Path file, byte[] content) throws IOException {
+
+        Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        Files.write(temporaryFile, content);
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,142 @@
+package aqua.common.security;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Coalesces the payloads sent to the same receiver into batches.
+ * <p>
+ * The first payload of a batch starts a timer of one batching window. The batch is passed on when the window ends or
+ * when it reaches the maximum number of payloads, whichever happens first. A payload is therefore delayed by at most
+ * one window.
+ * <p>
+ * A batch that fills up is passed on by the sending thread. The timer only detaches a batch whose window ended and
+ * hands it to a pool of flushing threads, so the batches of many receivers are still encrypted in parallel and a slow
+ * flush doesn't delay the windows of other batches.
+ * <p>
+ * This class is thread-safe.
+ */
+final class OutboundBatcher {
+
+    private static final long FLUSHER_KEEP_ALIVE = 1000;
+
+    private final long windowMicros;
+    private final int maxPayloads;
+    private final BiConsumer<InetSocketAddress, List<Serializable>> flushTarget;
+    private final ScheduledExecutorService timer;
+    private final ThreadPoolExecutor flushers;
+    private final Map<InetSocketAddress, List<Serializable>> batches;
+
+    /**
+     * @param windowMicros the maximum time in microseconds a payload waits for further payloads
+     * @param maxPayloads the maximum number of payloads in one batch
+     * @param flushTarget receives the completed batches
+     */
+    OutboundBatcher(long windowMicros, int maxPayloads, BiConsumer<InetSocketAddress, List<Serializable>> flushTarget) {
+
+        this.windowMicros = windowMicros;
+        this.maxPayloads = maxPayloads;
+        this.flushTarget = flushTarget;
+        batches = new HashMap<>();
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger flusherCount = new AtomicInteger();
+        int threads = Runtime.getRuntime().availableProcessors();
+        flushers = new ThreadPoolExecutor(threads, threads, FLUSHER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "batch-flusher-" + flusherCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // an idle endpoint doesn't keep any flushing threads
+        flushers.allowCoreThreadTimeOut(true);
+    }
+
+    void add(InetSocketAddress address, Serializable payload) {
+
+        List<Serializable> completed = null;
+
+        synchronized (this) {
+
+            List<Serializable> batch = batches.get(address);
+
+            if (batch == null) {
+                batch = new ArrayList<>(maxPayloads);
+                batches.put(address, batch);
+                timer.schedule(() -> windowEnded(address), windowMicros, TimeUnit.MICROSECONDS);
+            }
+
+            batch.add(payload);
+
+            if (batch.size() >= maxPayloads) {
+                completed = batches.remove(address);
+            }
+        }
+
+        if (completed != null) {
+            flushTarget.accept(address, completed);
+        }
+    }
+
+    /**
+     * Passes on the pending batch for the given receiver, if there is one.
+     */
+    void flush(InetSocketAddress address) {
+
+        List<Serializable> batch;
+
+        synchronized (this) {
+            batch = batches.remove(address);
+        }
+
+        if (batch != null) {
+            flushTarget.accept(address, batch);
+        }
+    }
+
+    /**
+     * Detaches the pending batch for the given receiver and lets a flushing thread pass it on.
+     */
+    private void windowEnded(InetSocketAddress address) {
+
+        List<Serializable> batch;
+
+        synchronized (this) {
+            batch = batches.remove(address);
+        }
+
+        if (batch == null) {
+            return;
+        }
+
+        try {
+            flushers.execute(() -> flushTarget.accept(address, batch));
+        } catch (RejectedExecutionException e) {
+            // the batcher was shut down, the batches still pending are passed on by the timer
+            flushTarget.accept(address, batch);
+        }
+    }
+
+    void shutdown() {
+
+        timer.shutdown();
+        flushers.shutdown();
+    }
+
+}
@@ -0,0 +1,67 @@
+package aqua.common.security;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The symmetric key used for all messages sent to one partner during one epoch.
+ * <p>
+ * GCM requires a unique IV per key, so every IV consists of a random prefix chosen for the session and a message
+ * counter. The counter also decides when the key has to be rotated.
+ * <p>
+ * This class is thread-safe and doesn't lock.
+ */
+final class OutboundSession {
+
+    private final SecretKey key;
+    private final int epoch;
+    private final byte[] wrappedKey;
+    private final int ivPrefix;
+    private final long createdAt;
+    private final AtomicLong messageCount;
+
+    OutboundSession(SecretKey key, int epoch, byte[] wrappedKey, int ivPrefix) {
+
+        this.key = key;
+        this.epoch = epoch;
+        this.wrappedKey = wrappedKey;
+        this.ivPrefix = ivPrefix;
+        createdAt = System.currentTimeMillis();
+        messageCount = new AtomicLong();
+    }
+
+    SecretKey getKey() {
+
+        return key;
+    }
+
+    int getEpoch() {
+
+        return epoch;
+    }
+
+    byte[] getWrappedKey() {
+
+        return wrappedKey;
+    }
+
+    /**
+     * @return a fresh 96 bit IV, never used before with this session's key
+     */
+    byte[] nextIv() {
+
+        return ByteBuffer.allocate(12).putInt(ivPrefix).putLong(messageCount.getAndIncrement()).array();
+    }
+
+    /**
+     * @param maxMessages the number of messages after which the key has to be rotated
+     * @param maxAge the age in milliseconds after which the key has to be rotated
+     * @return true if the key must not be used any longer
+     */
+    boolean isExhausted(long maxMessages, long maxAge) {
+
+        return messageCount.get() >= maxMessages || System.currentTimeMillis() - createdAt >= maxAge;
+    }
+
+}
@@ -1,133 +1,725 @@
 package aqua.common.security;
 
+import aqua.common.Properties;
+import aqua.common.codec.BinaryCodec;
+import aqua.common.codec.PayloadCodec;
 import aqua.common.msgtypes.DummyMessage;
+import aqua.common.msgtypes.EncryptedMessage;
 import aqua.common.msgtypes.KeyExchangeMessage;
+import aqua.common.msgtypes.MessageBatch;
+import aqua.common.msgtypes.SessionKeyMessage;
+import aqua.common.transport.NioEndpoint;
 import messaging.Endpoint;
 import messaging.Message;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.*;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An endpoint encrypting all payloads it sends.
+ * <p>
+ * RSA is only used to exchange the partners' public keys and to wrap a symmetric session key for each partner.
+ * All payloads are encrypted with AES-GCM under that session key, which is rotated after a number of messages or
+ * a period of time, whichever comes first. Before encryption, payloads are encoded by a {@link PayloadCodec}, the
+ * compact {@link BinaryCodec} unless selected otherwise. Payloads sent to the same partner within a short window
+ * are batched into one datagram, see {@link #setBatching(long, int)}.
+ * <p>
+ * The key exchange is asynchronous: payloads for a partner whose public key is still unknown are queued until the
+ * partner's answer arrives through the normal receive path, so sending never waits for the network. Unanswered key
+ * exchange requests are repeated at growing intervals and given up after {@link #MAX_HANDSHAKE_ATTEMPTS} attempts,
+ * along with the queued payloads. The partner's key is published and its queued payloads are sent in one step, so
+ * payloads sent afterwards can't overtake them.
+ */
 public class SecureEndpoint extends Endpoint {
 
     private static final String CRYPTO_ALGORITM = "RSA";
+    private static final String KEY_WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final String SESSION_ALGORITHM = "AES";
+    private static final String SESSION_TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int KEY_SIZE = 4096;
+    private static final int SESSION_KEY_SIZE = 128;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final long SESSION_MAX_MESSAGES = 1L << 20;
+    private static final long SESSION_MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+    private static final long HANDSHAKE_RETRY_INTERVAL = 500;
+    private static final long MAX_HANDSHAKE_RETRY_INTERVAL = 8000;
+    private static final int MAX_HANDSHAKE_ATTEMPTS = 8;
+    private static final int MAX_PENDING_PAYLOADS = 256;
+    // how long a message waits for the session key of its epoch before the partner is asked for a new session
+    private static final long SESSION_KEY_WAIT = 100;
+    private static final int ENCODE_BUFFER_SIZE = 1024;
+    private static final PayloadCodec DECODER = new BinaryCodec();
+    static final int MAX_BATCH_PAYLOADS = 32;
+    // leaves room for the envelope within the 1 KB receive buffer of messaging.Endpoint
+    private static final int MAX_BATCH_SIZE = 768;
     private final Endpoint endpoint;
-    private Cipher decryptor;
-    private Cipher encryptor;
+    private final KeyMaterialStore keyStore;
+    private final SecureRandom random;
+    private ThreadLocal<Cipher> decryptor;
+    private ThreadLocal<Cipher> keyUnwrapper;
+    private ThreadLocal<Cipher> encryptor;
+    private ThreadLocal<Cipher> keyWrapper;
+    private KeyGenerator sessionKeyGenerator;
     private KeyPair keyPair;
-    private final Map<InetSocketAddress, Key> COMMUNICATION_PARTNERS;
+    private final ConcurrentMap<InetSocketAddress, Key> COMMUNICATION_PARTNERS;
+    private final ConcurrentMap<InetSocketAddress, OutboundSession> outboundSessions;
+    // also read without the lock by send, which only takes it for partners found here
+    private final Map<InetSocketAddress, PendingPartner> pendingPartners;
+    private final ScheduledExecutorService handshakeRetries;
+    private final InboundSessions inboundSessions;
+    private final ConcurrentMap<InetSocketAddress, Long> sessionRequests;
+    private final AtomicInteger nextEpoch;
+    private final ThreadLocal<ByteBuffer> encodeBuffer;
+    private volatile PayloadCodec payloadCodec;
+    private volatile OutboundBatcher batcher;
+    private final Queue<Message> unpackedMessages;
+    // the partners whose public keys are kept in the key store
+    private volatile Set<InetSocketAddress> persistentPartners;
 
     public SecureEndpoint(int port) {
 
-        endpoint = new Endpoint(port);
-        COMMUNICATION_PARTNERS = new HashMap<>();
-        initializeEndpoint();
+        this(newTransport(port), null);
     }
 
     public SecureEndpoint() {
 
-        endpoint = new Endpoint();
-        COMMUNICATION_PARTNERS = new HashMap<>();
-        initializeEndpoint();
+        this(newTransport(0), null);
 
     }
 
+    /**
+     * Creates an endpoint which keeps its key pair and the public keys of the partners passed to
+     * {@link #persistPartners(Collection)} in the given directory.
+     *
+     * @param port the port to listen on
+     * @param keyDirectory the directory holding the key material, or {@code null} to keep it in memory only
+     */
+    public SecureEndpoint(int port, Path keyDirectory) {
+
+        this(newTransport(port), keyDirectory);
+    }
+
+    /**
+     * Creates an endpoint on an ephemeral port which keeps its key pair and the public keys of the partners passed
+     * to {@link #persistPartners(Collection)} in the given directory.
+     *
+     * @param keyDirectory the directory holding the key material, or {@code null} to keep it in memory only
+     */
+    public SecureEndpoint(Path keyDirectory) {
+
+        this(newTransport(0), keyDirectory);
+    }
+
+    /**
+     * Creates an endpoint sending and receiving through the given transport.
+     *
+     * @param transport the endpoint carrying the encrypted messages
+     * @param keyDirectory the directory holding the key material, or {@code null} to keep it in memory only
+     */
+    public SecureEndpoint(Endpoint transport, Path keyDirectory) {
+
+        endpoint = transport;
+        keyStore = keyDirectory == null ? null : new KeyMaterialStore(keyDirectory, CRYPTO_ALGORITM);
+        random = new SecureRandom();
+        COMMUNICATION_PARTNERS = new ConcurrentHashMap<>();
+        outboundSessions = new ConcurrentHashMap<>();
+        pendingPartners = new ConcurrentHashMap<>();
+        handshakeRetries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handshake-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        inboundSessions = new InboundSessions(SESSION_KEY_WAIT, this::requestNewSession);
+        sessionRequests = new ConcurrentHashMap<>();
+        nextEpoch = new AtomicInteger(random.nextInt());
+        encodeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(ENCODE_BUFFER_SIZE));
+        payloadCodec = new BinaryCodec();
+        unpackedMessages = new ConcurrentLinkedQueue<>();
+        persistentPartners = Collections.emptySet();
+        setBatching(Properties.BATCH_WINDOW_MICROS, MAX_BATCH_PAYLOADS);
+        initializeEndpoint();
+    }
+
     private void initializeEndpoint() {
 
         try {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(CRYPTO_ALGORITM);
-            keyPairGenerator.initialize(KEY_SIZE);
-            keyPair = keyPairGenerator.generateKeyPair();
-            decryptor = Cipher.getInstance(CRYPTO_ALGORITM);
-            decryptor.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
 
+            if (keyStore != null) {
+                keyPair = keyStore.loadKeyPair();
+            }
 
-        } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+            if (keyPair == null) {
+
+                KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(CRYPTO_ALGORITM);
+                keyPairGenerator.initialize(KEY_SIZE);
+                keyPair = keyPairGenerator.generateKeyPair();
+
+                if (keyStore != null) {
+                    keyStore.storeKeyPair(keyPair);
+                }
+            }
+
+            sessionKeyGenerator = KeyGenerator.getInstance(SESSION_ALGORITHM);
+            sessionKeyGenerator.init(SESSION_KEY_SIZE, random);
+
+            // a Cipher is stateful, so every thread gets its own instances for both directions
+            encryptor = ThreadLocal.withInitial(() -> newCipher(SESSION_TRANSFORMATION));
+            keyWrapper = ThreadLocal.withInitial(() -> newCipher(KEY_WRAP_TRANSFORMATION));
+            decryptor = ThreadLocal.withInitial(() -> newCipher(SESSION_TRANSFORMATION));
+            keyUnwrapper = ThreadLocal.withInitial(() -> {
+
+                try {
+                    Cipher cipher = newCipher(KEY_WRAP_TRANSFORMATION);
+                    cipher.init(Cipher.UNWRAP_MODE, keyPair.getPrivate());
+                    return cipher;
+                } catch (InvalidKeyException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+        } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * @param port the port to listen on, or 0 for an ephemeral port
+     * @return the transport selected in {@link Properties#NIO_TRANSPORT}
+     */
+    private static Endpoint newTransport(int port) {
+
+        if (Properties.NIO_TRANSPORT) {
+            return new NioEndpoint(port);
+        }
+
+        return port == 0 ? new Endpoint() : new Endpoint(port);
+    }
+
+    private static Cipher newCipher(String transformation) {
 
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encrypts and sends the payload. If the partner's public key is unknown, the payload is queued and a key
+     * exchange is started instead; the queued payloads are sent as soon as the partner answers.
+     */
     @Override
     public void send(InetSocketAddress address, Serializable payload) {
 
-        if (!COMMUNICATION_PARTNERS.containsKey(address)) {
+        // a partner with queued payloads may be getting its key right now, so wait for its queue to be sent
+        if (!COMMUNICATION_PARTNERS.containsKey(address) || pendingPartners.containsKey(address)) {
+
+            boolean queued = false;
+            boolean startHandshake = false;
+
+            synchronized (pendingPartners) {
 
-            endpoint.send(address, new KeyExchangeMessage(keyPair.getPublic()));
-            Message message = endpoint.blockingReceive();
+                // the answer may have arrived in the meantime
+                if (!COMMUNICATION_PARTNERS.containsKey(address)) {
+                    queued = true;
+                    startHandshake = enqueue(address, payload);
+                }
+            }
+
+            if (startHandshake) {
+                endpoint.send(address, new KeyExchangeMessage(keyPair.getPublic()));
+            }
 
-            if (message.getPayload() instanceof KeyExchangeMessage) {
-                addNewCommunicationPartner(message);
-                encrypt(address, payload);
+            // sent as soon as the key exchange is completed
+            if (queued) {
+                return;
             }
+        }
 
-        } else encrypt(address, payload);
+        sendKnown(address, payload);
     }
 
-    private void encrypt(InetSocketAddress address, Serializable payload) {
+    /**
+     * Sends the payload to a partner whose public key is known, batched if batching is enabled.
+     */
+    private void sendKnown(InetSocketAddress address, Serializable payload) {
+
+        OutboundBatcher outboundBatcher = batcher;
+
+        if (outboundBatcher != null) {
+            outboundBatcher.add(address, payload);
+        } else {
+            encrypt(address, payload);
+        }
+    }
+
+    /**
+     * Coalesces payloads sent to the same partner within the given window into one encrypted datagram.
+     *
+     * @param windowMicros the maximum delay of a payload in microseconds; 0 disables batching
+     * @param maxPayloads the maximum number of payloads per datagram
+     */
+    public synchronized void setBatching(long windowMicros, int maxPayloads) {
+
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+
+        batcher = windowMicros > 0 && maxPayloads > 1
+                ? new OutboundBatcher(windowMicros, maxPayloads, this::sendBatch)
+                : null;
+    }
+
+    /**
+     * Encrypts a batch of payloads as one message. Batches exceeding the datagram size limit are split.
+     */
+    private void sendBatch(InetSocketAddress address, List<Serializable> payloads) {
+
+        if (payloads.size() == 1) {
+            encrypt(address, payloads.get(0));
+            return;
+        }
 
         try {
 
-            encryptor = Cipher.getInstance(CRYPTO_ALGORITM);
-            encryptor.init(Cipher.ENCRYPT_MODE, COMMUNICATION_PARTNERS.get(address));
-            SealedObject s = new SealedObject(payload, encryptor);
-            endpoint.send(address, s);
+            ByteBuffer plaintext = encode(new MessageBatch(payloads));
+
+            if (plaintext.limit() > MAX_BATCH_SIZE) {
+
+                int half = payloads.size() / 2;
+                sendBatch(address, new ArrayList<>(payloads.subList(0, half)));
+                sendBatch(address, new ArrayList<>(payloads.subList(half, payloads.size())));
+                return;
+            }
+
+            encryptEncoded(address, plaintext);
 
-        } catch (IllegalBlockSizeException | IOException | NoSuchAlgorithmException
-                | NoSuchPaddingException | InvalidKeyException e) {
+        } catch (GeneralSecurityException | IOException e) {
             e.printStackTrace();
         }
     }
 
-    private Message decrypt(Message encryptedMessage) {
+    /**
+     * Queues a payload for a partner without known public key. Must hold the lock of the pending partners.
+     *
+     * @return true if a key exchange request has to be sent, i.e. this is the first payload for the partner
+     */
+    private boolean enqueue(InetSocketAddress address, Serializable payload) {
 
-        if (encryptedMessage.getPayload() instanceof KeyExchangeMessage) {
+        PendingPartner partner = pendingPartners.get(address);
+        boolean first = partner == null;
 
-            if (!COMMUNICATION_PARTNERS.containsKey(encryptedMessage.getSender())) {
-                addNewCommunicationPartner(encryptedMessage);
+        if (first) {
+            partner = new PendingPartner();
+            pendingPartners.put(address, partner);
+            scheduleHandshakeRetry(address, partner);
+        }
+
+        if (partner.payloads.size() == MAX_PENDING_PAYLOADS) {
+            partner.payloads.removeFirst();
+        }
+
+        partner.payloads.addLast(payload);
+        return first;
+    }
+
+    private void scheduleHandshakeRetry(InetSocketAddress address, PendingPartner partner) {
+
+        handshakeRetries.schedule(() -> retryHandshake(address, partner), partner.retryInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Repeats the key exchange request if the partner still hasn't answered, or gives the partner up along with its
+     * queued payloads after too many attempts.
+     */
+    private void retryHandshake(InetSocketAddress address, PendingPartner partner) {
+
+        synchronized (pendingPartners) {
+
+            // answered, or given up and queued for anew
+            if (pendingPartners.get(address) != partner) {
+                return;
+            }
+
+            if (++partner.attempts >= MAX_HANDSHAKE_ATTEMPTS) {
+                pendingPartners.remove(address);
+                System.out.println("Key exchange with " + address + " unanswered, dropping "
+                        + partner.payloads.size() + " queued payloads.");
+                return;
+            }
+
+            partner.retryInterval = Math.min(partner.retryInterval * 2, MAX_HANDSHAKE_RETRY_INTERVAL);
+            scheduleHandshakeRetry(address, partner);
+        }
+
+        endpoint.send(address, new KeyExchangeMessage(keyPair.getPublic()));
+    }
+
+    private void encrypt(InetSocketAddress address, Serializable payload) {
+
+        try {
+            encryptEncoded(address, encode(payload));
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void encryptEncoded(InetSocketAddress address, ByteBuffer plaintext) throws GeneralSecurityException {
+
+        OutboundSession session = getOutboundSession(address);
+        byte[] iv = session.nextIv();
+
+        Cipher cipher = encryptor.get();
+        cipher.init(Cipher.ENCRYPT_MODE, session.getKey(), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        byte[] ciphertext = cipher.doFinal(plaintext.array(), 0, plaintext.limit());
+
+        endpoint.send(address, new EncryptedMessage(session.getEpoch(), iv, ciphertext));
+    }
+
+    /**
+     * Returns the session used for messages to the given partner. A new session is started, and its key sent to
+     * the partner, if there is none yet or the current one has been used for too many messages or too long.
+     * Only starting a session is serialized per partner; using an existing session doesn't lock.
+     */
+    private OutboundSession getOutboundSession(InetSocketAddress address) throws GeneralSecurityException {
+
+        OutboundSession session = outboundSessions.get(address);
+
+        if (session != null && !session.isExhausted(SESSION_MAX_MESSAGES, SESSION_MAX_AGE)) {
+            return session;
+        }
+
+        try {
+
+            return outboundSessions.compute(address, (partner, current) -> {
+
+                // another thread may have started the session in the meantime
+                if (current != null && current != session
+                        && !current.isExhausted(SESSION_MAX_MESSAGES, SESSION_MAX_AGE)) {
+                    return current;
+                }
+
+                return startSession(partner);
+            });
+
+        } catch (IllegalStateException e) {
+
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
             }
 
-            endpoint.send(encryptedMessage.getSender(), new KeyExchangeMessage(keyPair.getPublic()));
-            return new Message(new DummyMessage(), encryptedMessage.getSender());
+            throw e;
         }
+    }
 
-        SealedObject encryptedPayload = (SealedObject) encryptedMessage.getPayload();
+    private OutboundSession startSession(InetSocketAddress address) {
 
         try {
 
-            Serializable serializable = (Serializable) encryptedPayload.getObject(decryptor);
+            // epochs are unique across all partners and sessions, so a restarted session never reuses an epoch
+            int epoch = nextEpoch.getAndIncrement();
 
-            return new Message(serializable, encryptedMessage.getSender());
+            SecretKey key;
 
-        } catch (IllegalBlockSizeException | ClassNotFoundException | IOException | BadPaddingException e) {
+            // KeyGenerator isn't thread-safe
+            synchronized (sessionKeyGenerator) {
+                key = sessionKeyGenerator.generateKey();
+            }
+
+            Cipher wrapper = keyWrapper.get();
+            wrapper.init(Cipher.WRAP_MODE, COMMUNICATION_PARTNERS.get(address));
+
+            OutboundSession session = new OutboundSession(key, epoch, wrapper.wrap(key), random.nextInt());
+            endpoint.send(address, new SessionKeyMessage(epoch, session.getWrappedKey()));
+            return session;
+
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts a message obtained by {@link #receiveRaw()} and unpacks batches. Handshake and session key messages
+     * are processed and returned as {@code DummyMessage}. This method may be called by several threads at once and
+     * never waits: a message whose session key hasn't arrived yet is parked and returned along with the session key
+     * message once it does.
+     *
+     * @param encryptedMessage the message as it was received
+     * @return the decrypted messages, in the order they were sent
+     */
+    public List<Message> decryptAll(Message encryptedMessage) {
+
+        if (encryptedMessage == null) {
+            return Collections.singletonList(null);
+        }
+
+        Serializable payload = encryptedMessage.getPayload();
+        InetSocketAddress sender = encryptedMessage.getSender();
+
+        if (payload instanceof KeyExchangeMessage) {
+
+            addNewCommunicationPartner(encryptedMessage);
+
+            if (!((KeyExchangeMessage) payload).isResponse()) {
+
+                // the partner has no session with us (anymore), so the next message has to carry a new session key
+                outboundSessions.remove(sender);
+
+                endpoint.send(sender, new KeyExchangeMessage(keyPair.getPublic(), true));
+            }
+
+            return Collections.singletonList(new Message(new DummyMessage(), sender));
+        }
+
+        if (payload instanceof SessionKeyMessage) {
+
+            List<Message> parked = addSessionKey(sender, (SessionKeyMessage) payload);
+
+            if (parked.isEmpty()) {
+                return Collections.singletonList(new Message(new DummyMessage(), sender));
+            }
+
+            List<Message> messages = new ArrayList<>();
+
+            for (Message message : parked)
+                messages.addAll(decryptAll(message));
+
+            return messages;
+        }
+
+        if (!(payload instanceof EncryptedMessage)) {
+            return Collections.singletonList(new Message(null, null));
+        }
+
+        EncryptedMessage encryptedPayload = (EncryptedMessage) payload;
+        SecretKey key = inboundSessions.getOrPark(sender, encryptedPayload.getEpoch(), encryptedMessage);
+
+        if (key == null) {
+            return Collections.singletonList(new Message(new DummyMessage(), sender));
+        }
+
+        Message message = decrypt(encryptedPayload, key, sender);
+
+        if (!(message.getPayload() instanceof MessageBatch)) {
+            return Collections.singletonList(message);
+        }
+
+        List<Serializable> payloads = ((MessageBatch) message.getPayload()).getPayloads();
+        List<Message> messages = new ArrayList<>(payloads.size());
+
+        for (Serializable batched : payloads)
+            messages.add(new Message(batched, sender));
+
+        return messages;
+    }
+
+    private Message decrypt(EncryptedMessage encryptedPayload, SecretKey key, InetSocketAddress sender) {
+
+        try {
+
+            Cipher cipher = decryptor.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, encryptedPayload.getIv()));
+            Serializable serializable = DECODER.decode(ByteBuffer.wrap(cipher.doFinal(encryptedPayload.getCiphertext())));
+
+            return new Message(serializable, sender);
+
+        } catch (GeneralSecurityException | ClassNotFoundException | IOException e) {
             e.printStackTrace();
         }
         return new Message(null, null);
     }
 
+    /**
+     * @return the messages which were parked while waiting for the key
+     */
+    private List<Message> addSessionKey(InetSocketAddress sender, SessionKeyMessage sessionKeyMessage) {
+
+        try {
+
+            SecretKey key = (SecretKey) keyUnwrapper.get()
+                    .unwrap(sessionKeyMessage.getWrappedKey(), SESSION_ALGORITHM, Cipher.SECRET_KEY);
+            return inboundSessions.put(sender, sessionKeyMessage.getEpoch(), key);
+
+        } catch (GeneralSecurityException e) {
+
+            // the partner wrapped the key with an outdated public key of ours, e.g. cached before our restart
+            requestNewSession(sender);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Asks the partner to start a new session because its session key got lost. Requests to the same partner are
+     * sent at most once per retry interval, as all messages of the lost session will fail the same way.
+     */
+    private void requestNewSession(InetSocketAddress partner) {
+
+        long now = System.currentTimeMillis();
+        Long lastRequest = sessionRequests.get(partner);
+
+        if (lastRequest != null && now - lastRequest < HANDSHAKE_RETRY_INTERVAL) {
+            return;
+        }
+
+        if (lastRequest == null ? sessionRequests.putIfAbsent(partner, now) == null
+                : sessionRequests.replace(partner, lastRequest, now)) {
+            endpoint.send(partner, new KeyExchangeMessage(keyPair.getPublic()));
+        }
+    }
+
+    /**
+     * Encodes the payload into the calling thread's buffer, growing the buffer if the payload doesn't fit.
+     *
+     * @return the thread's buffer, flipped for reading the encoded payload
+     */
+    private ByteBuffer encode(Serializable payload) throws IOException {
+
+        ByteBuffer buffer = encodeBuffer.get();
+
+        while (true) {
+
+            buffer.clear();
+
+            try {
+                payloadCodec.encode(payload, buffer);
+                return buffer.flip();
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                encodeBuffer.set(buffer);
+            }
+        }
+    }
+
+    /**
+     * Selects how payloads are encoded before encryption. Received payloads are decoded regardless of the codec
+     * their sender used.
+     *
+     * @param payloadCodec the codec for outgoing payloads
+     */
+    public void setPayloadCodec(PayloadCodec payloadCodec) {
+
+        this.payloadCodec = payloadCodec;
+    }
+
+    public PayloadCodec getPayloadCodec() {
+
+        return payloadCodec;
+    }
+
+    /**
+     * Publishes the partner's public key and sends all payloads which have been queued while waiting for it, in the
+     * order they were passed to {@link #send(InetSocketAddress, Serializable)}. Both happen under the lock of the
+     * pending partners, and the partner stays pending until its queue is sent, so concurrent sends wait and can't
+     * overtake the queued payloads.
+     */
     public void addNewCommunicationPartner(Message m) {
 
-        COMMUNICATION_PARTNERS.put(m.getSender(), ((KeyExchangeMessage) m.getPayload()).getKey());
+        Key key = ((KeyExchangeMessage) m.getPayload()).getKey();
+
+        synchronized (pendingPartners) {
+
+            COMMUNICATION_PARTNERS.put(m.getSender(), key);
+            PendingPartner partner = pendingPartners.get(m.getSender());
+
+            if (partner != null) {
+
+                for (Serializable payload : partner.payloads)
+                    sendKnown(m.getSender(), payload);
+
+                pendingPartners.remove(m.getSender());
+            }
+        }
+
+        if (keyStore != null && key instanceof PublicKey && persistentPartners.contains(m.getSender())) {
+            keyStore.storePartner(m.getSender(), (PublicKey) key);
+        }
+    }
+
+    /**
+     * Keeps the public keys of the given partners in the key directory and loads the keys stored for them. Only
+     * long-lived partners, i.e. the brokers on their well-known ports, are worth keeping; the keys of all other
+     * partners are only kept in memory.
+     *
+     * @param partners the partners whose keys survive a restart
+     */
+    public void persistPartners(Collection<InetSocketAddress> partners) {
+
+        persistentPartners = new HashSet<>(partners);
+
+        if (keyStore != null) {
+            COMMUNICATION_PARTNERS.putAll(keyStore.loadPartners(partners));
+        }
+    }
+
+    /**
+     * Receives the next message without decrypting it, so receiving and decrypting can run on different threads.
+     *
+     * @return the message as it was received
+     */
+    public Message receiveRaw() {
+
+        return endpoint.blockingReceive();
     }
 
     @Override
     public Message blockingReceive() {
 
-        Message encryptedMessage = endpoint.blockingReceive();
-        return decrypt(encryptedMessage);
+        Message message = unpackedMessages.poll();
+
+        if (message != null) {
+            return message;
+        }
+
+        return firstUnpacked(decryptAll(endpoint.blockingReceive()));
     }
 
     @Override
     public Message nonBlockingReceive() {
 
-        Message encryptedMessage = endpoint.nonBlockingReceive();
-        return decrypt(encryptedMessage);
+        Message message = unpackedMessages.poll();
+
+        if (message != null) {
+            return message;
+        }
+
+        return firstUnpacked(decryptAll(endpoint.nonBlockingReceive()));
+    }
+
+    /**
+     * @return the first message; the remaining messages of the batch are returned by the next receive calls
+     */
+    private Message firstUnpacked(List<Message> messages) {
+
+        unpackedMessages.addAll(messages.subList(1, messages.size()));
+        return messages.get(0);
+    }
+
+    /**
+     * The payloads waiting for the key exchange with one partner.
+     */
+    private static class PendingPartner {
+
+        final Deque<Serializable> payloads = new ArrayDeque<>();
+        // guarded by the lock of the pending partners
+        int attempts = 1;
+        long retryInterval = HANDSHAKE_RETRY_INTERVAL;
+
     }
 
 }
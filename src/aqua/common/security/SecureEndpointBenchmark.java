@@ -0,0 +1,337 @@
+package aqua.common.security;
+
+import aqua.common.Properties;
+import aqua.common.msgtypes.LocationRequest;
+import aqua.common.msgtypes.SessionKeyMessage;
+import messaging.Endpoint;
+import messaging.Message;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress benchmark for concurrent encryption and decryption in {@link SecureEndpoint}.
+ * <p>
+ * Two endpoints are connected by an in-memory transport, so nothing is lost on the way and only the endpoints are
+ * measured. For 1, 2, 4, ... up to the given number of threads, as many threads encrypt messages on one endpoint
+ * while as many threads decrypt them on the other, like the broker's decryption stage. Every message carries a
+ * unique id; a run fails if a message is lost, duplicated or garbled. Each session key message is delivered a few
+ * messages late, so messages also have to wait for their key without blocking the decrypting threads.
+ * <p>
+ * The runs are made with the endpoint's default configuration, which batches the payloads to the same receiver, and
+ * again with batching disabled, i.e. one encryption per message. Finally, the benchmark sends single messages one at
+ * a time in both configurations and reports their end-to-end latency, which shows what the batching window adds to a
+ * message that no other message joins.
+ * <p>
+ * Usage: {@code SecureEndpointBenchmark [threads] [messages per thread]}
+ */
+public class SecureEndpointBenchmark {
+
+    // the number of messages overtaking each session key message
+    private static final int SESSION_KEY_DELAY = 8;
+    private static final int WARMUP_MESSAGES = 1000;
+    private static final long RUN_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final int LATENCY_SAMPLES = 500;
+    private static final long LATENCY_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static volatile Run current;
+
+    public static void main(String[] args) throws Exception {
+
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+        MemoryTransport senderTransport = new MemoryTransport(new InetSocketAddress("localhost", 1));
+        MemoryTransport receiverTransport = new MemoryTransport(new InetSocketAddress("localhost", 2));
+        senderTransport.connect(receiverTransport);
+        receiverTransport.connect(senderTransport);
+
+        System.out.println("Generating key pairs...");
+        SecureEndpoint sender = new SecureEndpoint(senderTransport, null);
+        SecureEndpoint receiver = new SecureEndpoint(receiverTransport, null);
+
+        startDaemon("handshakes", () -> sender.decryptAll(sender.receiveRaw()));
+        startDaemon("receiver", () -> {
+            Message raw = receiver.receiveRaw();
+            current.decrypt(receiver, raw);
+        });
+
+        System.out.println("threads  messages  encrypt msg/s  end-to-end msg/s  lost  duplicated");
+
+        // completes the key exchange and the first session, whose first messages wait for the delayed key; paced,
+        // so the messages queued during the key exchange don't exceed the endpoint's limit
+        boolean failed = !report("warmup", run(sender, receiverTransport.address, 1, WARMUP_MESSAGES, "warmup-", true));
+
+        System.out.println("default configuration, batching window " + Properties.BATCH_WINDOW_MICROS + " us:");
+        failed |= !runAll(sender, receiverTransport.address, maxThreads, messages, "batched");
+        long[] batched = latencies(sender, receiverTransport.address, "latency-batched-");
+
+        // one encryption per message, so the threads contend for the session and the ciphers
+        sender.setBatching(0, 0);
+        System.out.println("batching disabled:");
+        failed |= !runAll(sender, receiverTransport.address, maxThreads, messages, "unbatched");
+        long[] unbatched = latencies(sender, receiverTransport.address, "latency-unbatched-");
+
+        System.out.printf("single message latency:  batched p50 %d us  p99 %d us,  unbatched p50 %d us  p99 %d us%n",
+                percentile(batched, 0.5), percentile(batched, 0.99),
+                percentile(unbatched, 0.5), percentile(unbatched, 0.99));
+
+        System.exit(failed || batched.length < LATENCY_SAMPLES || unbatched.length < LATENCY_SAMPLES ? 1 : 0);
+    }
+
+    /**
+     * @return true if every message of every run arrived exactly once
+     */
+    private static boolean runAll(SecureEndpoint sender, InetSocketAddress receiver, int maxThreads, int messages,
+                                  String prefix) throws InterruptedException {
+
+        boolean passed = true;
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            passed &= report(String.valueOf(threads),
+                    run(sender, receiver, threads, messages, prefix + threads + "-", false));
+        }
+
+        return passed;
+    }
+
+    /**
+     * Sends one message at a time and waits for it to be delivered before sending the next.
+     *
+     * @return the end-to-end latencies of the delivered messages in nanoseconds, sorted
+     */
+    private static long[] latencies(SecureEndpoint sender, InetSocketAddress receiver, String prefix)
+            throws InterruptedException {
+
+        Run run = new Run(prefix, 1, LATENCY_SAMPLES);
+        current = run;
+        long[] latencies = new long[LATENCY_SAMPLES];
+        int delivered = 0;
+
+        for (int i = 0; i < LATENCY_SAMPLES; i++) {
+
+            long start = System.nanoTime();
+            sender.send(receiver, new LocationRequest(prefix + i));
+
+            while (run.delivered.get() <= i && System.nanoTime() - start < RUN_TIMEOUT)
+                LockSupport.parkNanos(LATENCY_POLL_NANOS);
+
+            if (run.delivered.get() <= i) {
+                break;
+            }
+
+            latencies[delivered++] = System.nanoTime() - start;
+        }
+
+        run.decryptors.shutdown();
+        run.decryptors.awaitTermination(1, TimeUnit.SECONDS);
+
+        long[] sorted = Arrays.copyOf(latencies, delivered);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return the given percentile of the sorted latencies in microseconds, or -1 if there are none
+     */
+    private static long percentile(long[] sorted, double percentile) {
+
+        if (sorted.length == 0) {
+            return -1;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))]);
+    }
+
+    /**
+     * @return true if every message arrived exactly once
+     */
+    private static boolean report(String name, Run run) {
+
+        long lost = run.total - run.received.size();
+
+        System.out.printf("%7s  %8d  %13.0f  %16.0f  %4d  %10d%n", name, run.total,
+                run.total / ((run.encrypted - run.start) / 1e9), run.total / ((run.end - run.start) / 1e9),
+                lost, run.duplicated.get());
+
+        return lost == 0 && run.duplicated.get() == 0;
+    }
+
+    private static Run run(SecureEndpoint sender, InetSocketAddress receiver, int threads, int messages,
+                           String prefix, boolean paced) throws InterruptedException {
+
+        Run run = new Run(prefix, threads, (long) threads * messages);
+        current = run;
+
+        Thread[] senders = new Thread[threads];
+        run.start = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+
+            String threadPrefix = prefix + t + "-";
+            senders[t] = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+
+                    sender.send(receiver, new LocationRequest(threadPrefix + i));
+
+                    if (paced) {
+                        pause();
+                    }
+                }
+            });
+            senders[t].start();
+        }
+
+        for (Thread thread : senders)
+            thread.join();
+
+        run.encrypted = System.nanoTime();
+
+        while (run.delivered.get() < run.total && System.nanoTime() - run.encrypted < RUN_TIMEOUT)
+            Thread.sleep(1);
+
+        run.end = System.nanoTime();
+        run.decryptors.shutdown();
+        run.decryptors.awaitTermination(1, TimeUnit.SECONDS);
+        return run;
+    }
+
+    private static void pause() {
+
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void startDaemon(String name, Runnable loop) {
+
+        Thread thread = new Thread(() -> {
+            while (true)
+                loop.run();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The messages of one run and the pool decrypting them.
+     */
+    private static class Run {
+
+        final String prefix;
+        final long total;
+        final ExecutorService decryptors;
+        final Set<String> received = ConcurrentHashMap.newKeySet();
+        final AtomicLong duplicated = new AtomicLong();
+        final AtomicLong delivered = new AtomicLong();
+        long start;
+        long encrypted;
+        long end;
+
+        Run(String prefix, int threads, long total) {
+
+            this.prefix = prefix;
+            this.total = total;
+            decryptors = Executors.newFixedThreadPool(threads);
+        }
+
+        void decrypt(SecureEndpoint receiver, Message raw) {
+
+            decryptors.execute(() -> {
+
+                for (Message message : receiver.decryptAll(raw)) {
+
+                    Serializable payload = message.getPayload();
+
+                    if (!(payload instanceof LocationRequest) || !((LocationRequest) payload).getFish().startsWith(prefix)) {
+                        continue;
+                    }
+
+                    if (!received.add(((LocationRequest) payload).getFish())) {
+                        duplicated.incrementAndGet();
+                    }
+
+                    delivered.incrementAndGet();
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Delivers datagrams straight into the queue of the connected transport, holding back each session key message
+     * until a few further messages have passed it.
+     */
+    private static class MemoryTransport extends Endpoint {
+
+        private final InetSocketAddress address;
+        private final LinkedBlockingQueue<Message> inbound;
+        private final Queue<Message> heldBack;
+        private int overtaking;
+        private MemoryTransport peer;
+
+        MemoryTransport(InetSocketAddress address) {
+
+            this.address = address;
+            inbound = new LinkedBlockingQueue<>();
+            heldBack = new ArrayDeque<>();
+        }
+
+        void connect(MemoryTransport peer) {
+
+            this.peer = peer;
+        }
+
+        @Override
+        public void send(InetSocketAddress address, Serializable payload) {
+
+            peer.deliver(new Message(payload, this.address));
+        }
+
+        private synchronized void deliver(Message message) {
+
+            if (message.getPayload() instanceof SessionKeyMessage) {
+                heldBack.add(message);
+                return;
+            }
+
+            inbound.add(message);
+
+            if (!heldBack.isEmpty() && ++overtaking >= SESSION_KEY_DELAY) {
+                inbound.add(heldBack.remove());
+                overtaking = 0;
+            }
+        }
+
+        @Override
+        public Message blockingReceive() {
+
+            try {
+                return inbound.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Message nonBlockingReceive() {
+
+            return inbound.poll();
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package aqua.common.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of equal size. Allocating direct buffers is expensive, so buffers are handed back to
+ * the pool after use instead of being left to the garbage collector.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final AtomicInteger pooled;
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        buffers = new ConcurrentLinkedQueue<>();
+        pooled = new AtomicInteger();
+    }
+
+    /**
+     * @return a cleared buffer, taken from the pool if possible
+     */
+    public ByteBuffer acquire() {
+
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else if (buffer.capacity() == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+
+        return bufferSize;
+    }
+
+}
@@ -0,0 +1,229 @@
+package aqua.common.transport;
+
+import messaging.Endpoint;
+import messaging.Message;
+
+import aqua.common.codec.BinaryCodec;
+import aqua.common.codec.PayloadCodec;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A drop-in replacement for {@code messaging.Endpoint} built on a non-blocking {@code DatagramChannel}.
+ * <p>
+ * A selector thread drains all datagrams available at each wakeup into a bounded inbound queue, which
+ * {@link #blockingReceive()} and {@link #nonBlockingReceive()} read from. Payloads are encoded by the
+ * {@link BinaryCodec} straight into pooled direct buffers and decoded straight from them, so no heap array holding
+ * the whole datagram is allocated on its way, unlike with a {@code DatagramPacket}. The decoded fields, e.g. strings
+ * and ciphertexts, are still copied to the heap. A datagram which can't be decoded is dropped and counted, whatever
+ * the decoder throws, so the selector thread keeps receiving. Java serialized datagrams of a {@code messaging.Endpoint} are still understood,
+ * but a {@code messaging.Endpoint} can't read what this endpoint sends, so all nodes have to use the same transport.
+ * <p>
+ * If the socket's send buffer is full, a send is retried a few times before the datagram is given up and counted.
+ * <p>
+ * The socket opened by the {@code messaging.Endpoint} superclass constructor is never used.
+ * <p>
+ * This class is thread-safe.
+ */
+public class NioEndpoint extends Endpoint {
+
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final int INBOUND_CAPACITY = 65536;
+    private static final int POOLED_BUFFERS = 64;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEND_ATTEMPTS = 10;
+    private static final long SEND_RETRY_DELAY = TimeUnit.MICROSECONDS.toNanos(100);
+    private final PayloadCodec codec;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final DirectBufferPool bufferPool;
+    private final BlockingQueue<Message> inbound;
+    private final LongAdder droppedDatagrams;
+    private final LongAdder unsentDatagrams;
+    private final Thread receiver;
+
+    public NioEndpoint() {
+
+        this(0);
+    }
+
+    /**
+     * @param port the port to listen on, or 0 for an ephemeral port
+     */
+    public NioEndpoint(int port) {
+
+        bufferPool = new DirectBufferPool(MAX_DATAGRAM_SIZE, POOLED_BUFFERS);
+        inbound = new LinkedBlockingQueue<>(INBOUND_CAPACITY);
+        droppedDatagrams = new LongAdder();
+        unsentDatagrams = new LongAdder();
+        codec = new BinaryCodec();
+
+        try {
+
+            channel = DatagramChannel.open();
+
+            // a large socket buffer absorbs bursts between two wakeups of the selector thread
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        receiver = new Thread(this::receive, "nio-receiver-" + getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public int getLocalPort() {
+
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of datagrams dropped because they couldn't be read or the inbound queue was full
+     */
+    public long getDroppedDatagrams() {
+
+        return droppedDatagrams.sum();
+    }
+
+    /**
+     * @return the number of datagrams which couldn't be sent, because they were too large or the socket's send
+     * buffer stayed full
+     */
+    public long getUnsentDatagrams() {
+
+        return unsentDatagrams.sum();
+    }
+
+    @Override
+    public void send(InetSocketAddress address, Serializable payload) {
+
+        ByteBuffer buffer = bufferPool.acquire();
+
+        try {
+
+            codec.encode(payload, buffer);
+            buffer.flip();
+
+            // a non-blocking channel sends nothing at all while the socket's send buffer is full
+            for (int attempt = 1; channel.send(buffer, address) == 0; attempt++) {
+
+                if (attempt == MAX_SEND_ATTEMPTS) {
+                    unsentDatagrams.increment();
+                    return;
+                }
+
+                LockSupport.parkNanos(SEND_RETRY_DELAY);
+            }
+
+        } catch (BufferOverflowException e) {
+            unsentDatagrams.increment();
+            e.printStackTrace();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public Message blockingReceive() {
+
+        try {
+            return inbound.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Message nonBlockingReceive() {
+
+        return inbound.poll();
+    }
+
+    /**
+     * Stops the selector thread and releases the socket.
+     */
+    public void close() {
+
+        receiver.interrupt();
+
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void receive() {
+
+        ByteBuffer buffer = bufferPool.acquire();
+
+        try {
+
+            while (!Thread.currentThread().isInterrupted() && channel.isOpen()) {
+
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // drain everything that arrived, not just the datagram that woke us up
+                SocketAddress sender;
+
+                while ((sender = channel.receive(buffer.clear())) != null) {
+
+                    buffer.flip();
+                    Message message = readDatagram(buffer, (InetSocketAddress) sender);
+
+                    if (message == null || !inbound.offer(message)) {
+                        droppedDatagrams.increment();
+                    }
+                }
+            }
+
+        } catch (IOException | ClosedSelectorException e) {
+
+            if (channel.isOpen()) {
+                e.printStackTrace();
+            }
+
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private Message readDatagram(ByteBuffer buffer, InetSocketAddress sender) {
+
+        try {
+            return new Message(codec.decode(buffer), sender);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            return null;
+        } catch (Error e) {
+            // e.g. a datagram exhausting the heap or the stack of the decoder, which mustn't end the receiver
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+}